@@ -0,0 +1,135 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.abavilla.fpi.login.codec.CharArrayCodec;
+import com.abavilla.fpi.login.codec.ServiceStatusCodec;
+import com.abavilla.fpi.login.codec.UserStatusCodec;
+import com.abavilla.fpi.login.entity.UserStatus;
+import com.abavilla.fpi.login.ext.entity.ServiceStatus;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for encoding and decoding with the BSON codecs in
+ * {@link com.abavilla.fpi.login.codec}. Values are wrapped in a single field document, which is
+ * how the driver encounters them.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBench {
+
+  private static final String FIELD = "value";
+
+  private final CharArrayCodec charArrayCodec = new CharArrayCodec();
+
+  private final UserStatusCodec userStatusCodec = new UserStatusCodec();
+
+  private final ServiceStatusCodec serviceStatusCodec = new ServiceStatusCodec();
+
+  private final char[] hash = "$2y$04$abcdefghijklmnopqrstuuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  private byte[] encodedHash;
+
+  private byte[] encodedUserStatus;
+
+  private byte[] encodedServiceStatus;
+
+  @Setup
+  public void setup() {
+    encodedHash = encode(charArrayCodec, hash);
+    encodedUserStatus = encode(userStatusCodec, UserStatus.VERIFIED);
+    encodedServiceStatus = encode(serviceStatusCodec, ServiceStatus.OPT_IN);
+  }
+
+  @Benchmark
+  public byte[] encodeCharArray() {
+    return encode(charArrayCodec, hash);
+  }
+
+  @Benchmark
+  public char[] decodeCharArray() {
+    return decode(charArrayCodec, encodedHash);
+  }
+
+  @Benchmark
+  public byte[] encodeUserStatus() {
+    return encode(userStatusCodec, UserStatus.VERIFIED);
+  }
+
+  @Benchmark
+  public UserStatus decodeUserStatus() {
+    return decode(userStatusCodec, encodedUserStatus);
+  }
+
+  @Benchmark
+  public byte[] encodeServiceStatus() {
+    return encode(serviceStatusCodec, ServiceStatus.OPT_IN);
+  }
+
+  @Benchmark
+  public ServiceStatus decodeServiceStatus() {
+    return decode(serviceStatusCodec, encodedServiceStatus);
+  }
+
+  private static <T> byte[] encode(Codec<T> codec, T value) {
+    var buffer = new BasicOutputBuffer();
+    try (var writer = new BsonBinaryWriter(buffer)) {
+      writer.writeStartDocument();
+      writer.writeName(FIELD);
+      codec.encode(writer, value, EncoderContext.builder().build());
+      writer.writeEndDocument();
+    }
+    return buffer.toByteArray();
+  }
+
+  private static <T> T decode(Codec<T> codec, byte[] bytes) {
+    try (var reader = new BsonBinaryReader(ByteBuffer.wrap(bytes))) {
+      reader.readStartDocument();
+      reader.readName();
+      T value = codec.decode(reader, DecoderContext.builder().build());
+      reader.readEndDocument();
+      return value;
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.abavilla.fpi.login.ext.dto.SessionDto.SessionStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link SessionStatus} lookups, covering the first and last declared constant as
+ * well as a miss falling back to {@link SessionStatus#UNKNOWN}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnumLookupBench {
+
+  /**
+   * Constant to look up, {@code MISSING} does not exist
+   */
+  @Param({"CREATED_USER", "PRIV_CLEAN", "MISSING"})
+  String status;
+
+  private String value;
+
+  private int id;
+
+  @Setup
+  public void setup() {
+    if ("MISSING".equals(status)) {
+      value = "Not a session status";
+      id = Integer.MAX_VALUE;
+    } else {
+      var sessionStatus = SessionStatus.valueOf(status);
+      value = sessionStatus.getValue();
+      id = sessionStatus.getId();
+    }
+  }
+
+  @Benchmark
+  public SessionStatus fromValue() {
+    return SessionStatus.fromValue(value);
+  }
+
+  @Benchmark
+  public SessionStatus fromId() {
+    return SessionStatus.fromId(id);
+  }
+
+}
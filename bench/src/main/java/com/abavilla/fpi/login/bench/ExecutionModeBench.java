@@ -0,0 +1,186 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the reactive and virtual thread execution modes end to end. Each operation sends a wave
+ * of concurrent first logins to a running service and waits for all of them, so the score is the
+ * latency of a wave and its inverse the throughput. A login of a new user goes through the session
+ * lookup, the keycloak password grant, the BCrypt hash and the session upsert, in the reactive
+ * mode through {@code LoginResource} and {@code LoginSvc}, in the virtual thread mode through
+ * {@code VirtualThreadLoginResource} and {@code BlockingLoginSvc}.
+ * <p>
+ * The bench serves a stubbed keycloak token endpoint with the injected latency on
+ * {@code bench.keycloak.port}, 8180 by default. Build the service once per execution mode and run
+ * each build with the {@code bench} profile, which points the service at the stub and lifts the
+ * address throttle, e.g. {@code PORT=8080 java -Dquarkus.profile=bench -jar quarkus-run.jar} for
+ * the reactive build and {@code PORT=8081} for the one built with
+ * {@code -Dfpi.login.execution-mode=virtual-threads}. Pass the addresses to the forked JVM with
+ * {@code -jvmArgsAppend "-Dbench.reactive=<url> -Dbench.virtual-threads=<url>"} if they differ.
+ * The virtual thread build needs a JVM with virtual threads, as does the bench.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutionModeBench {
+
+  /**
+   * Execution mode the targeted service was built with
+   */
+  @Param({"reactive", "virtual-threads"})
+  String mode;
+
+  /**
+   * Injected latency of the stubbed keycloak token endpoint in milliseconds
+   */
+  @Param({"5", "50"})
+  int keycloakLatencyMs;
+
+  /**
+   * Concurrent logins per wave
+   */
+  @Param({"50", "500"})
+  int concurrency;
+
+  private static final String TOKEN_PATH = "/realms/bench/protocol/openid-connect/token";
+
+  private static final String TOKEN_RESPONSE = """
+    {"access_token":"access","expires_in":300,"refresh_expires_in":1800,\
+    "refresh_token":"refresh","token_type":"Bearer"}""";
+
+  private ExecutorService virtualThreads;
+
+  private HttpServer keycloak;
+
+  private HttpClient client;
+
+  private URI loginUri;
+
+  @Setup
+  public void setup() throws IOException {
+    virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    var keycloakPort = Integer.getInteger("bench.keycloak.port", 8180);
+    keycloak = HttpServer.create(new InetSocketAddress(keycloakPort), 0);
+    keycloak.createContext(TOKEN_PATH, this::issueToken);
+    keycloak.setExecutor(virtualThreads);
+    keycloak.start();
+    client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .executor(virtualThreads)
+      .build();
+    var defaultUrl = "reactive".equals(mode) ? "http://localhost:8080" : "http://localhost:8081";
+    loginUri = URI.create(System.getProperty("bench." + mode, defaultUrl) + "/fpi/login");
+  }
+
+  @TearDown
+  public void tearDown() {
+    keycloak.stop(0);
+    client.close();
+    virtualThreads.shutdownNow();
+  }
+
+  @Benchmark
+  public int login() {
+    var logins = new ArrayList<CompletableFuture<HttpResponse<String>>>(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      logins.add(client.sendAsync(newLogin(), HttpResponse.BodyHandlers.ofString()));
+    }
+    return checkAll(logins);
+  }
+
+  /**
+   * Builds the login of a new user, so that every login reaches keycloak and BCrypt.
+   *
+   * @return Login request
+   */
+  private HttpRequest newLogin() {
+    var body = "{\"username\":\"bench-" + UUID.randomUUID() + "\",\"password\":\"password\"}";
+    return HttpRequest.newBuilder(loginUri)
+      .header("Content-Type", "application/json")
+      .POST(HttpRequest.BodyPublishers.ofString(body))
+      .build();
+  }
+
+  private static int checkAll(List<CompletableFuture<HttpResponse<String>>> logins) {
+    for (var login : logins) {
+      var resp = login.join();
+      if (resp.statusCode() != 200) {
+        throw new IllegalStateException(
+          "Login failed with " + resp.statusCode() + ": " + resp.body());
+      }
+    }
+    return logins.size();
+  }
+
+  /**
+   * Answers a password grant after the injected latency, parking the virtual thread serving it.
+   *
+   * @param exchange Token request
+   */
+  private void issueToken(HttpExchange exchange) throws IOException {
+    try {
+      exchange.getRequestBody().readAllBytes();
+      Thread.sleep(keycloakLatencyMs);
+      var body = TOKEN_RESPONSE.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.abavilla.fpi.login.repo.UserRepo;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * User resolution against a live MongoDB, comparing queries on the per platform id fields, each
+ * with its own unique index, with the {@code $elemMatch} query on the identities array of
+ * {@link UserRepo#findByIdentity}. Users are stored with both layouts so the two run against the
+ * same documents. The database is read from the {@code bench.mongo} system property, pass it to the
+ * forked JVM with {@code -jvmArgsAppend -Dbench.mongo=<connection string>}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class IdentityLookupBench {
+
+  /**
+   * Legacy id field of each platform, in the same order as {@link #SOURCES}
+   */
+  private static final String[] FIELDS = {"metaId", "telegramId", "viberId", "mobile"};
+
+  private static final String[] SOURCES = {"FB_MSGR", "TELEGRAM", "VIBER", "SMS"};
+
+  private static final int INSERT_BATCH = 1000;
+
+  @Param({"100000"})
+  int userCount;
+
+  private MongoClient client;
+
+  private MongoCollection<Document> users;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    client = MongoClients.create(System.getProperty("bench.mongo", "mongodb://localhost"));
+    users = client.getDatabase("fpi_login_bench").getCollection("system_users");
+    users.drop();
+    var batch = new ArrayList<Document>(INSERT_BATCH);
+    for (int i = 0; i < userCount; i++) {
+      var user = new Document();
+      var identities = new ArrayList<Document>(FIELDS.length);
+      for (int platform = 0; platform < FIELDS.length; platform++) {
+        var externalId = externalId(platform, i);
+        user.append(FIELDS[platform], externalId);
+        identities.add(new Document("source", SOURCES[platform]).append("externalId", externalId));
+      }
+      batch.add(user.append("identities", identities));
+      if (batch.size() == INSERT_BATCH) {
+        users.insertMany(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      users.insertMany(batch);
+    }
+    var indexes = new ArrayList<IndexModel>();
+    for (var field : FIELDS) {
+      indexes.add(new IndexModel(Indexes.ascending(field), new IndexOptions().unique(true).name(field)));
+    }
+    indexes.add(new IndexModel(Indexes.ascending("identities.source", "identities.externalId"),
+      new IndexOptions().unique(true).name("identities")));
+    users.createIndexes(indexes);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    users.drop();
+    client.close();
+  }
+
+  @Benchmark
+  public Document perFieldLookup() {
+    var random = ThreadLocalRandom.current();
+    int platform = random.nextInt(FIELDS.length);
+    return users.find(Filters.eq(FIELDS[platform], externalId(platform, random.nextInt(userCount))))
+      .first();
+  }
+
+  @Benchmark
+  public Document identityLookup() {
+    var random = ThreadLocalRandom.current();
+    int platform = random.nextInt(SOURCES.length);
+    return users.find(Filters.elemMatch("identities", Filters.and(
+        Filters.eq("source", SOURCES[platform]),
+        Filters.eq("externalId", externalId(platform, random.nextInt(userCount))))))
+      .first();
+  }
+
+  private static String externalId(int platform, int user) {
+    return SOURCES[platform] + "-" + user;
+  }
+
+}
@@ -0,0 +1,76 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import com.abavilla.fpi.login.util.LoginUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for hashing and verifying passwords with {@link LoginUtil} at different cost factors.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoginUtilBench {
+
+  /**
+   * BCrypt cost factor
+   */
+  @Param({"4", "8", "10", "12"})
+  int cost;
+
+  private char[] password;
+
+  private char[] hash;
+
+  @Setup
+  public void setup() {
+    new LoginUtil().init(null);
+    password = "correct horse battery staple".toCharArray();
+    hash = LoginUtil.hashPassword(password, cost);
+  }
+
+  @Benchmark
+  public char[] hashPassword() {
+    return LoginUtil.hashPassword(password, cost);
+  }
+
+  @Benchmark
+  public boolean verifyHash() {
+    return LoginUtil.verifyHash(password, hash);
+  }
+
+}
@@ -0,0 +1,128 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.abavilla.fpi.login.repo.IndexVerifier;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Trusted login user lookups by social platform id against a live MongoDB holding a million users,
+ * comparing the unique partial index of changeSet 4 with the collection scan the lookups ran before
+ * it, forced on the same collection with a {@code $natural} hint. {@link IndexVerifier} checks the
+ * index is present at startup. The database is read from the {@code bench.mongo} system property,
+ * pass it to the forked JVM with {@code -jvmArgsAppend -Dbench.mongo=<connection string>}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PlatformIdLookupBench {
+
+  private static final String TELEGRAM_ID = "telegramId";
+
+  private static final int INSERT_BATCH = 1000;
+
+  @Param({"1000000"})
+  int userCount;
+
+  private MongoClient client;
+
+  private MongoCollection<Document> users;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    client = MongoClients.create(System.getProperty("bench.mongo", "mongodb://localhost"));
+    users = client.getDatabase("fpi_login_bench").getCollection("system_users");
+    users.drop();
+    var batch = new ArrayList<Document>(INSERT_BATCH);
+    for (int i = 0; i < userCount; i++) {
+      var user = new Document("metaId", "meta-" + i).append("mobile", "639" + i);
+      // only some users are on telegram, as with the partial index in production
+      if (i % 2 == 0) {
+        user.append(TELEGRAM_ID, telegramId(i));
+      }
+      batch.add(user);
+      if (batch.size() == INSERT_BATCH) {
+        users.insertMany(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      users.insertMany(batch);
+    }
+    users.createIndex(Indexes.ascending(TELEGRAM_ID), new IndexOptions().unique(true).name(TELEGRAM_ID)
+      .partialFilterExpression(Filters.exists(TELEGRAM_ID)));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    users.drop();
+    client.close();
+  }
+
+  @Benchmark
+  public Document indexedLookup() {
+    return users.find(Filters.eq(TELEGRAM_ID, pickTelegramId())).first();
+  }
+
+  @Benchmark
+  public Document collectionScan() {
+    return users.find(Filters.eq(TELEGRAM_ID, pickTelegramId()))
+      .hint(new Document("$natural", 1))
+      .first();
+  }
+
+  private String pickTelegramId() {
+    return telegramId(ThreadLocalRandom.current().nextInt(userCount / 2) * 2);
+  }
+
+  private static String telegramId(int user) {
+    return "telegram-" + user;
+  }
+
+}
@@ -0,0 +1,164 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.abavilla.fpi.login.repo.SessionRepo;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent session refreshes against a live MongoDB, comparing a lookup followed by an insert or
+ * replace, retried on duplicate keys as the login pipelines used to, with the single
+ * {@code findOneAndUpdate} upsert of {@link SessionRepo#upsert}. Sample time mode reports the
+ * latency percentiles and the round trips per refresh are reported as an extra counter. The
+ * database is read from the {@code bench.mongo} system property, pass it to the forked JVM with
+ * {@code -jvmArgsAppend -Dbench.mongo=<connection string>}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class SessionUpsertBench {
+
+  private static final String USERNAME = "username";
+
+  /**
+   * Number of distinct users the threads refresh, fewer users means more refreshes racing on the
+   * same session
+   */
+  @Param({"16", "4096"})
+  int userCount;
+
+  private MongoClient client;
+
+  private MongoCollection<Document> sessions;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    client = MongoClients.create(System.getProperty("bench.mongo", "mongodb://localhost"));
+    sessions = client.getDatabase("fpi_login_bench").getCollection("login_sessions");
+    sessions.drop();
+    sessions.createIndex(Indexes.ascending(USERNAME), new IndexOptions().unique(true).name(USERNAME));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    sessions.drop();
+    client.close();
+  }
+
+  @Benchmark
+  public Document readThenWrite(RoundTrips counters) {
+    var username = pickUser();
+    while (true) {
+      var session = newSession(username);
+      counters.roundTrips++;
+      var existing = sessions.find(Filters.eq(USERNAME, username)).first();
+      counters.roundTrips++;
+      try {
+        if (existing == null) {
+          session.append("dateCreated", session.get("dateUpdated"));
+          sessions.insertOne(session);
+        } else {
+          session.append("_id", existing.get("_id"));
+          session.append("dateCreated", existing.get("dateCreated"));
+          sessions.replaceOne(Filters.eq("_id", existing.get("_id")), session);
+        }
+        return session;
+      } catch (MongoWriteException ex) {
+        if (ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public Document atomicUpsert(RoundTrips counters) {
+    var session = newSession(pickUser());
+    var update = Updates.combine(
+      Updates.set("accessToken", session.get("accessToken")),
+      Updates.set("refreshToken", session.get("refreshToken")),
+      Updates.set("refreshTokenExpiry", session.get("refreshTokenExpiry")),
+      Updates.set("dateUpdated", session.get("dateUpdated")),
+      Updates.setOnInsert("dateCreated", session.get("dateUpdated")));
+    counters.roundTrips++;
+    return sessions.findOneAndUpdate(Filters.eq(USERNAME, session.get(USERNAME)), update,
+      new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+  }
+
+  private String pickUser() {
+    return "user" + ThreadLocalRandom.current().nextInt(userCount);
+  }
+
+  private static Document newSession(String username) {
+    var now = new Date();
+    return new Document(USERNAME, username)
+      .append("accessToken", "access-" + System.nanoTime())
+      .append("refreshToken", "refresh-" + System.nanoTime())
+      .append("refreshTokenExpiry", new Date(now.getTime() + TimeUnit.MINUTES.toMillis(30)))
+      .append("dateUpdated", now);
+  }
+
+  /**
+   * Round trips to the database made by each thread
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class RoundTrips {
+
+    public long roundTrips;
+
+  }
+
+}
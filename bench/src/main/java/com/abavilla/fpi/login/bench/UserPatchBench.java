@@ -0,0 +1,188 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.bench;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.abavilla.fpi.login.codec.CharArrayCodec;
+import com.abavilla.fpi.login.codec.ServiceStatusCodec;
+import com.abavilla.fpi.login.codec.UserCodec;
+import com.abavilla.fpi.login.codec.UserStatusCodec;
+import com.abavilla.fpi.login.entity.PersonName;
+import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.login.entity.UserStatus;
+import com.abavilla.fpi.login.ext.entity.ServiceStatus;
+import com.abavilla.fpi.login.repo.UserRepo;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent user patches against a live MongoDB, comparing a fetch of the whole user, an in memory
+ * merge and a replace of the whole user, as patches used to be applied, with the single pipeline
+ * {@code findOneAndUpdate} of {@link UserRepo#patch}. Each patch sets the service status and the
+ * mobile number. Users are written with the service's own {@link UserCodec} and the pipeline is built
+ * by {@link UserRepo#patchUpdate}, so the bench measures the update the service sends. Sample time
+ * mode reports the latency percentiles and the round trips per patch are reported as an extra
+ * counter. The database is read from the {@code bench.mongo} system property, pass it to the forked
+ * JVM with {@code -jvmArgsAppend -Dbench.mongo=<connection string>}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class UserPatchBench {
+
+  /**
+   * Number of distinct users the threads patch, fewer users means more patches racing on the
+   * same user
+   */
+  @Param({"16", "4096"})
+  int userCount;
+
+  private MongoClient client;
+
+  private CodecRegistry registry;
+
+  private MongoCollection<User> users;
+
+  private ObjectId[] ids;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    var userStatusCodec = new UserStatusCodec();
+    var serviceStatusCodec = new ServiceStatusCodec();
+    registry = CodecRegistries.fromRegistries(
+      CodecRegistries.fromCodecs(new CharArrayCodec(), userStatusCodec, serviceStatusCodec,
+        new UserCodec(userStatusCodec, serviceStatusCodec)),
+      MongoClientSettings.getDefaultCodecRegistry());
+    client = MongoClients.create(System.getProperty("bench.mongo", "mongodb://localhost"));
+    users = client.getDatabase("fpi_login_bench")
+      .getCollection("system_users", User.class)
+      .withCodecRegistry(registry);
+    users.drop();
+    ids = new ObjectId[userCount];
+    var seed = new ArrayList<User>(userCount);
+    var now = LocalDateTime.now();
+    for (int i = 0; i < userCount; i++) {
+      ids[i] = new ObjectId();
+      var name = new PersonName();
+      name.setFirstName("User");
+      name.setLastName(String.valueOf(i));
+      var user = new User();
+      user.setId(ids[i]);
+      user.putIdentity(BotSource.FB_MSGR, "meta" + i);
+      user.putIdentity(BotSource.SMS, "639" + i);
+      user.setStatus(UserStatus.VERIFIED);
+      user.setRegistrationDate(now);
+      user.setLastAccess(now);
+      user.setName(name);
+      user.setSvcStatus(ServiceStatus.OPT_OUT);
+      user.setDateCreated(now);
+      user.setDateUpdated(now);
+      seed.add(user);
+    }
+    users.insertMany(seed);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    users.drop();
+    client.close();
+  }
+
+  @Benchmark
+  public User fetchMergeReplace(RoundTrips counters) {
+    var id = pickUser();
+    counters.roundTrips++;
+    var user = users.find(Filters.eq("_id", id)).first();
+    user.putIdentity(BotSource.SMS, newMobile());
+    user.setSvcStatus(newSvcStatus());
+    user.setDateUpdated(LocalDateTime.now());
+    counters.roundTrips++;
+    users.replaceOne(Filters.eq("_id", id), user);
+    return user;
+  }
+
+  @Benchmark
+  public User atomicPatch(RoundTrips counters) {
+    var patch = new User();
+    patch.putIdentity(BotSource.SMS, newMobile());
+    patch.setSvcStatus(newSvcStatus());
+    patch.setDateUpdated(LocalDateTime.now());
+    counters.roundTrips++;
+    return users.findOneAndUpdate(Filters.eq("_id", pickUser()), UserRepo.patchUpdate(registry, patch),
+      new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+  }
+
+  private ObjectId pickUser() {
+    return ids[ThreadLocalRandom.current().nextInt(userCount)];
+  }
+
+  private static String newMobile() {
+    return "639" + ThreadLocalRandom.current().nextLong(100_000_000L, 1_000_000_000L);
+  }
+
+  private static ServiceStatus newSvcStatus() {
+    return ThreadLocalRandom.current().nextBoolean() ? ServiceStatus.OPT_IN : ServiceStatus.OPT_OUT;
+  }
+
+  /**
+   * Round trips to the database made by each thread
+   */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class RoundTrips {
+
+    public long roundTrips;
+
+  }
+
+}
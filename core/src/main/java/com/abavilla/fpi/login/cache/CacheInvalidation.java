@@ -0,0 +1,67 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.types.ObjectId;
+
+/**
+ * Event fired when a cached document was changed by any node, caches holding documents of the
+ * given {@link Source} observe it and drop the affected entries.
+ *
+ * @param source Collection the change happened in
+ * @param id Id of the changed document, {@code null} if all entries must be dropped
+ * @param key Lookup key of the changed document e.g. session username, {@code null} if unknown
+ * @param operation Operation that changed the document
+ * @param document Changed document as looked up after the change, {@code null} if deleted or unknown,
+ *                 caches already holding an equal document keep it, e.g. on the echo of their own writes
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public record CacheInvalidation(Source source, ObjectId id, String key, OperationType operation,
+                                Object document) {
+
+  /**
+   * Collections backing the in-process caches
+   */
+  public enum Source {
+    SESSION,
+    USER
+  }
+
+  /**
+   * Creates an invalidation of all cached documents of a source, used when changes may have been missed.
+   *
+   * @param source Collection of the cached documents
+   * @return the invalidation event
+   */
+  public static CacheInvalidation reset(Source source) {
+    return new CacheInvalidation(source, null, null, null, null);
+  }
+
+  /**
+   * Checks if all cached documents of the source must be dropped.
+   *
+   * @return {@code true} if all entries must be dropped
+   */
+  public boolean isReset() {
+    return id == null;
+  }
+
+}
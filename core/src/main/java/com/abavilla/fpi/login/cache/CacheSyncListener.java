@@ -0,0 +1,255 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.entity.Session;
+import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.login.repo.SessionRepo;
+import com.abavilla.fpi.login.repo.UserRepo;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import io.quarkus.mongodb.ChangeStreamOptions;
+import io.quarkus.mongodb.reactive.ReactiveMongoClient;
+import io.quarkus.mongodb.reactive.ReactiveMongoCollection;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.Cancellable;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+/**
+ * Keeps the in-process caches of every node consistent by watching the change streams of
+ * {@code login_sessions} and {@code system_users} and firing a {@link CacheInvalidation} for every
+ * change, including TTL deletions of expired sessions. The resume token of each stream is
+ * checkpointed to DB so that a restarted node continues where it left off, if the stream history
+ * has been lost all cached entries are dropped instead.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class CacheSyncListener {
+
+  private static final Logger LOG = Logger.getLogger(CacheSyncListener.class);
+
+  /**
+   * Collection holding the last processed resume token of each watched collection
+   */
+  private static final String TOKEN_COLLECTION = "cache_sync_tokens";
+
+  private static final String TOKEN_FIELD = "token";
+
+  private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+  private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+
+  private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+
+  private static final Duration RETRY_INITIAL_BACKOFF = Duration.ofSeconds(1);
+
+  private static final Duration RETRY_MAX_BACKOFF = Duration.ofMinutes(1);
+
+  private static final Duration SHUTDOWN_CHECKPOINT_TIMEOUT = Duration.ofSeconds(5);
+
+  /**
+   * Switch for watching the change streams, requires DB to be a replica set
+   */
+  @ConfigProperty(name = "fpi.login.cache-sync.enabled")
+  boolean enabled;
+
+  @ConfigProperty(name = "quarkus.mongodb.database")
+  String database;
+
+  @Inject
+  ReactiveMongoClient mongoClient;
+
+  @Inject
+  SessionRepo sessionRepo;
+
+  @Inject
+  UserRepo userRepo;
+
+  @Inject
+  Event<CacheInvalidation> invalidations;
+
+  /**
+   * Last processed resume token per watched collection, not yet checkpointed
+   */
+  private final Map<String, BsonDocument> resumeTokens = new ConcurrentHashMap<>();
+
+  private final List<Cancellable> subscriptions = new CopyOnWriteArrayList<>();
+
+  private ReactiveMongoCollection<BsonDocument> tokenCollection;
+
+  void onStart(@Observes StartupEvent evt) {
+    if (!enabled) {
+      return;
+    }
+    tokenCollection = mongoClient.getDatabase(database)
+      .getCollection(TOKEN_COLLECTION, BsonDocument.class);
+    watch(sessionRepo.mongoCollection(), CacheInvalidation.Source.SESSION, this::onSessionChange);
+    watch(userRepo.mongoCollection(), CacheInvalidation.Source.USER, this::onUserChange);
+  }
+
+  void onStop(@Observes ShutdownEvent evt) {
+    subscriptions.forEach(Cancellable::cancel);
+    if (enabled) {
+      checkpoint().await().atMost(SHUTDOWN_CHECKPOINT_TIMEOUT);
+    }
+  }
+
+  /**
+   * Persists the last processed resume token of each watched collection.
+   *
+   * @return Completion of the checkpoint
+   */
+  @Scheduled(every = "{fpi.login.cache-sync.checkpoint-interval}",
+    concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  Uni<Void> checkpoint() {
+    if (tokenCollection == null || resumeTokens.isEmpty()) {
+      return Uni.createFrom().voidItem();
+    }
+    return Multi.createFrom().iterable(List.copyOf(resumeTokens.entrySet()))
+      .onItem().transformToUniAndMerge(entry -> {
+        var checkpoint = new BsonDocument("_id", new BsonString(entry.getKey()))
+          .append(TOKEN_FIELD, entry.getValue())
+          .append("dateUpdated", new BsonDateTime(System.currentTimeMillis()));
+        return tokenCollection.replaceOne(Filters.eq("_id", entry.getKey()), checkpoint,
+          new ReplaceOptions().upsert(true));
+      })
+      .collect().last()
+      .replaceWithVoid()
+      .onFailure().recoverWithUni(ex -> {
+        LOG.warn("Unable to checkpoint change stream resume tokens", ex);
+        return Uni.createFrom().voidItem();
+      });
+  }
+
+  /**
+   * Subscribes to the change stream of a collection, resuming after the last processed change
+   * and re-subscribing with backoff if the stream fails.
+   *
+   * @param collection Collection to watch
+   * @param source Cache source of the collection
+   * @param handler Handler of each change
+   * @param <T> Type of document in the collection
+   */
+  private <T> void watch(ReactiveMongoCollection<T> collection, CacheInvalidation.Source source,
+                         Consumer<ChangeStreamDocument<T>> handler) {
+    var name = collection.getNamespace().getCollectionName();
+    var subscription = Uni.createFrom().deferred(() -> resumeToken(name))
+      .onItem().transformToMulti(token -> {
+        var options = new ChangeStreamOptions().fullDocument(FullDocument.UPDATE_LOOKUP);
+        if (token != null) {
+          options = options.resumeAfter(token);
+        }
+        return collection.watch(options);
+      })
+      .onItem().invoke(change -> {
+        handler.accept(change);
+        resumeTokens.put(name, change.getResumeToken());
+      })
+      .onFailure(this::isHistoryLost).call(ex -> {
+        LOG.warnf("Change stream history of %s lost, dropping all cached entries", name);
+        invalidations.fire(CacheInvalidation.reset(source));
+        resumeTokens.remove(name);
+        return tokenCollection.deleteOne(Filters.eq("_id", name));
+      })
+      .onFailure(ex -> !isNotSupported(ex)).invoke(ex ->
+        LOG.warnf(ex, "Change stream of %s failed, resubscribing", name))
+      .onFailure(ex -> !isNotSupported(ex)).retry()
+        .withBackOff(RETRY_INITIAL_BACKOFF, RETRY_MAX_BACKOFF).indefinitely()
+      .subscribe().with(
+        change -> {},
+        ex -> LOG.errorf(ex, "Stopped watching %s, caches of other nodes' changes will be stale", name));
+    subscriptions.add(subscription);
+  }
+
+  private Uni<BsonDocument> resumeToken(String collectionName) {
+    var token = resumeTokens.get(collectionName);
+    if (token != null) {
+      return Uni.createFrom().item(token);
+    }
+    return tokenCollection.find(Filters.eq("_id", collectionName)).collect().first()
+      .map(checkpoint -> checkpoint == null ? null : checkpoint.getDocument(TOKEN_FIELD, null));
+  }
+
+  private void onSessionChange(ChangeStreamDocument<Session> change) {
+    if (isCollectionWide(change)) {
+      invalidations.fire(CacheInvalidation.reset(CacheInvalidation.Source.SESSION));
+      return;
+    }
+    var session = change.getFullDocument();
+    invalidations.fire(new CacheInvalidation(CacheInvalidation.Source.SESSION,
+      readId(change), session == null ? null : session.getUsername(), change.getOperationType(), session));
+  }
+
+  private void onUserChange(ChangeStreamDocument<User> change) {
+    if (isCollectionWide(change)) {
+      invalidations.fire(CacheInvalidation.reset(CacheInvalidation.Source.USER));
+      return;
+    }
+    invalidations.fire(new CacheInvalidation(CacheInvalidation.Source.USER,
+      readId(change), null, change.getOperationType(), change.getFullDocument()));
+  }
+
+  private static boolean isCollectionWide(ChangeStreamDocument<?> change) {
+    var operation = change.getOperationType();
+    return change.getDocumentKey() == null || operation == OperationType.DROP
+      || operation == OperationType.RENAME || operation == OperationType.INVALIDATE;
+  }
+
+  private static ObjectId readId(ChangeStreamDocument<?> change) {
+    BsonValue id = change.getDocumentKey().get("_id");
+    return id != null && id.isObjectId() ? id.asObjectId().getValue() : null;
+  }
+
+  private boolean isHistoryLost(Throwable ex) {
+    return ex instanceof MongoServerException serverEx
+      && (serverEx.getCode() == CHANGE_STREAM_HISTORY_LOST || serverEx.getCode() == CHANGE_STREAM_FATAL_ERROR);
+  }
+
+  private boolean isNotSupported(Throwable ex) {
+    return ex instanceof MongoServerException serverEx && serverEx.getCode() == CHANGE_STREAM_NOT_SUPPORTED;
+  }
+
+}
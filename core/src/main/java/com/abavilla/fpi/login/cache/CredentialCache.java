@@ -0,0 +1,295 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.entity.Session;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.mongodb.client.model.changestream.OperationType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * In-process cache of credentials that were already verified against a {@link Session}, so that
+ * repeated logins with the same credentials skip both the session lookup and BCrypt verification.
+ * Passwords are never kept in memory, entries are keyed by username and hold an HMAC-SHA256 digest
+ * of the last verified password computed with a secret generated on every startup, so all of a
+ * user's credentials are dropped with a single removal.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class CredentialCache {
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private static final int SECRET_LENGTH = 32;
+
+  /**
+   * Maximum number of cached credentials
+   */
+  @ConfigProperty(name = "fpi.login.credential-cache.max-size")
+  long maxSize;
+
+  /**
+   * Maximum time an entry is cached, entries are evicted earlier once the session expires
+   */
+  @ConfigProperty(name = "fpi.login.credential-cache.ttl")
+  Duration ttl;
+
+  @Inject
+  MeterRegistry registry;
+
+  private Cache<String, Verified> cache;
+
+  /**
+   * Username of each cached credential by session id, as deleted sessions are only identified by id
+   */
+  private final Map<ObjectId, String> usernames = new ConcurrentHashMap<>();
+
+  private SecretKeySpec secret;
+
+  private final ThreadLocal<Mac> mac = ThreadLocal.withInitial(this::createMac);
+
+  @PostConstruct
+  void init() {
+    var key = new byte[SECRET_LENGTH];
+    new SecureRandom().nextBytes(key);
+    secret = new SecretKeySpec(key, HMAC_ALGORITHM);
+    cache = Caffeine.newBuilder()
+      .maximumSize(maxSize)
+      .expireAfter(new SessionExpiry())
+      .evictionListener((String username, Verified verified, RemovalCause cause) -> unindex(username, verified))
+      .recordStats()
+      .build();
+    CaffeineCacheMetrics.monitor(registry, cache, "login-credentials");
+  }
+
+  /**
+   * Retrieves the session previously verified with the given credentials.
+   *
+   * @param username Username
+   * @param password Password presented by the client
+   * @return Verified session if found
+   */
+  public Optional<Session> get(String username, String password) {
+    return get(key(username, password));
+  }
+
+  /**
+   * Retrieves the session previously verified with the given credentials.
+   *
+   * @param key Credentials key, see {@link #key(String, String)}
+   * @return Verified session if found
+   */
+  public Optional<Session> get(CredentialKey key) {
+    var verified = cache.getIfPresent(key.username());
+    if (verified == null || !MessageDigest.isEqual(verified.digest(), key.digest())) {
+      return Optional.empty();
+    }
+    return Optional.of(verified.session());
+  }
+
+  /**
+   * Caches a session which has been verified with the given credentials.
+   *
+   * @param username Username
+   * @param password Password presented by the client
+   * @param session Verified session
+   */
+  public void put(String username, String password, Session session) {
+    put(key(username, password), session);
+  }
+
+  /**
+   * Caches a session which has been verified with the given credentials.
+   *
+   * @param key Credentials key, see {@link #key(String, String)}
+   * @param session Verified session
+   */
+  public void put(CredentialKey key, Session session) {
+    var verified = new Verified(key.digest(), session);
+    cache.asMap().compute(key.username(), (username, previous) -> {
+      unindex(username, previous);
+      if (session.getId() != null) {
+        usernames.put(session.getId(), username);
+      }
+      return verified;
+    });
+  }
+
+  /**
+   * Removes all cached credentials of a user, used when the session is refreshed.
+   *
+   * @param username Username
+   */
+  public void invalidate(String username) {
+    unindex(username, cache.asMap().remove(username));
+  }
+
+  /**
+   * Drops credentials of sessions changed by any node, see {@link CacheSyncListener}. Newly created
+   * sessions cannot make a cached credential stale so inserts are ignored.
+   *
+   * @param invalidation Invalidation event
+   */
+  void onInvalidation(@Observes CacheInvalidation invalidation) {
+    if (invalidation.source() != CacheInvalidation.Source.SESSION
+        || invalidation.operation() == OperationType.INSERT) {
+      return;
+    }
+    if (invalidation.isReset()) {
+      cache.invalidateAll();
+      usernames.clear();
+      return;
+    }
+    var username = invalidation.key() != null ? invalidation.key() : usernames.get(invalidation.id());
+    if (username == null) {
+      return;
+    }
+    cache.asMap().computeIfPresent(username, (key, cached) -> {
+      // keeps the entry on the echo of a write of the session it was verified against
+      if (cached.session().equals(invalidation.document())) {
+        return cached;
+      }
+      unindex(key, cached);
+      return null;
+    });
+  }
+
+  private void unindex(String username, Verified verified) {
+    if (verified != null && verified.session().getId() != null) {
+      usernames.remove(verified.session().getId(), username);
+    }
+  }
+
+  /**
+   * Creates the cache key for the given credentials.
+   *
+   * @param username Username
+   * @param password Password presented by the client
+   * @return Cache key
+   */
+  public CredentialKey key(String username, String password) {
+    return new CredentialKey(username, mac.get().doFinal(password.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private Mac createMac() {
+    try {
+      var hmac = Mac.getInstance(HMAC_ALGORITHM);
+      hmac.init(secret);
+      return hmac;
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException("Unable to initialize " + HMAC_ALGORITHM, ex);
+    }
+  }
+
+  /**
+   * Key of a cached credential.
+   *
+   * @param username Username
+   * @param digest HMAC of the password
+   */
+  public record CredentialKey(String username, byte[] digest) {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof CredentialKey other && username.equals(other.username)
+        && MessageDigest.isEqual(digest, other.digest);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+      return 31 * username.hashCode() + Arrays.hashCode(digest);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+      return "CredentialKey[username=" + username + "]";
+    }
+  }
+
+  /**
+   * Cached credential of a user.
+   *
+   * @param digest HMAC of the verified password
+   * @param session Session the password was verified against
+   */
+  private record Verified(byte[] digest, Session session) {
+  }
+
+  /**
+   * Expires entries at the configured ttl or when the session's token expires, whichever is earlier.
+   */
+  private class SessionExpiry implements Expiry<String, Verified> {
+
+    @Override
+    public long expireAfterCreate(String username, Verified verified, long currentTime) {
+      var untilExpiry = Duration.between(DateUtil.now(), verified.session().getRefreshTokenExpiry());
+      if (untilExpiry.isNegative()) {
+        return 0L;
+      }
+      return Math.min(ttl.toNanos(), untilExpiry.toNanos());
+    }
+
+    @Override
+    public long expireAfterUpdate(String username, Verified verified, long currentTime,
+                                  long currentDuration) {
+      return expireAfterCreate(username, verified, currentTime);
+    }
+
+    @Override
+    public long expireAfterRead(String username, Verified verified, long currentTime,
+                                long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+}
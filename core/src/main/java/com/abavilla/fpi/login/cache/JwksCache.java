@@ -0,0 +1,145 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.abavilla.fpi.login.rest.KeycloakTokenClient;
+import com.abavilla.fpi.login.util.SingleFlight;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Uni;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKParser;
+
+/**
+ * Cache of the realm's public signing keys, keyed by key id. The keys are refreshed in the
+ * background and refetched when a token is signed with an unknown key id, concurrent refetches
+ * share a single request and refetches are rate limited so forged key ids can't flood keycloak.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class JwksCache {
+
+  private static final Logger LOG = Logger.getLogger(JwksCache.class);
+
+  private static final String FLIGHT_KEY = "jwks";
+
+  /**
+   * Minimum time between two refetches caused by unknown key ids
+   */
+  @ConfigProperty(name = "fpi.login.jwks.min-refetch-interval")
+  Duration minRefetchInterval;
+
+  @Inject
+  KeycloakTokenClient tokenClient;
+
+  /**
+   * Fired when a key is removed from the realm, tokens verified with it should be discarded
+   */
+  @Inject
+  Event<KeysRotated> keysRotated;
+
+  private final AtomicReference<Map<String, PublicKey>> keys = new AtomicReference<>(Map.of());
+
+  private final AtomicLong lastFetch = new AtomicLong();
+
+  private final SingleFlight<String, Map<String, PublicKey>> fetches = new SingleFlight<>();
+
+  /**
+   * Retrieves the signing key with the given id, refetching the key set if it is unknown.
+   *
+   * @param kid Key id from the token header
+   * @return Public key, or {@code null} if the realm has no such key
+   */
+  public Uni<PublicKey> get(String kid) {
+    var key = keys.get().get(kid);
+    if (key != null) {
+      return Uni.createFrom().item(key);
+    }
+    if (System.nanoTime() - lastFetch.get() < minRefetchInterval.toNanos() && !keys.get().isEmpty()) {
+      return Uni.createFrom().nullItem();
+    }
+    return fetch().map(fetched -> fetched.get(kid));
+  }
+
+  /**
+   * Refreshes the key set in the background, keeps the current keys if keycloak can't be reached.
+   *
+   * @return Completion of the refresh
+   */
+  @Scheduled(every = "{fpi.login.jwks.refresh-interval}",
+    concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  Uni<Void> refresh() {
+    return fetch()
+      .onFailure().recoverWithItem(ex -> {
+        LOG.warn("Unable to refresh the realm's signing keys", ex);
+        return null;
+      })
+      .replaceWithVoid();
+  }
+
+  private Uni<Map<String, PublicKey>> fetch() {
+    return fetches.run(FLIGHT_KEY, () -> tokenClient.fetchJwks()
+      .map(JwksCache::parseKeys)
+      .invoke(fetched -> {
+        lastFetch.set(System.nanoTime());
+        var previous = keys.getAndSet(fetched);
+        if (!fetched.keySet().containsAll(previous.keySet())) {
+          keysRotated.fire(new KeysRotated());
+        }
+      }));
+  }
+
+  private static Map<String, PublicKey> parseKeys(JSONWebKeySet jwks) {
+    var parsed = new HashMap<String, PublicKey>();
+    if (jwks.getKeys() == null) {
+      return parsed;
+    }
+    for (JWK jwk : jwks.getKeys()) {
+      if (jwk.getKeyId() == null ||
+        (jwk.getPublicKeyUse() != null && !JWK.Use.SIG.asString().equals(jwk.getPublicKeyUse()))) {
+        continue;
+      }
+      try {
+        parsed.put(jwk.getKeyId(), JWKParser.create(jwk).toPublicKey());
+      } catch (RuntimeException ex) {
+        LOG.debugf(ex, "Skipping unsupported key %s", jwk.getKeyId());
+      }
+    }
+    return Map.copyOf(parsed);
+  }
+
+  /**
+   * Event fired when a signing key has been removed from the realm.
+   */
+  public record KeysRotated() {}
+
+}
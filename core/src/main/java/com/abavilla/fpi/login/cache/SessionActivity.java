@@ -0,0 +1,80 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import java.time.Duration;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Usernames which recently logged in on this node, only their sessions are renewed ahead of expiry
+ * so that idle sessions are left to expire. Every node renews the sessions of its own users, so no
+ * shared state is written on the login path.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class SessionActivity {
+
+  /**
+   * Sessions with no login for longer than this are no longer renewed
+   */
+  @ConfigProperty(name = "fpi.login.session-renewal.active-within")
+  Duration activeWithin;
+
+  /**
+   * Maximum number of tracked usernames
+   */
+  @ConfigProperty(name = "fpi.login.session-renewal.max-active")
+  long maxActive;
+
+  private Cache<String, Boolean> active;
+
+  @PostConstruct
+  void init() {
+    active = Caffeine.newBuilder()
+      .maximumSize(maxActive)
+      .expireAfterWrite(activeWithin)
+      .build();
+  }
+
+  /**
+   * Records a login of a user.
+   *
+   * @param username Username
+   */
+  public void recordLogin(String username) {
+    active.put(username, Boolean.TRUE);
+  }
+
+  /**
+   * Checks if a user logged in recently.
+   *
+   * @param username Username
+   * @return {@code true} if the user logged in within the configured time
+   */
+  public boolean isActive(String username) {
+    return active.getIfPresent(username) != null;
+  }
+
+}
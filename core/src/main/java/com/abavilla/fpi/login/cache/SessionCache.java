@@ -0,0 +1,221 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.entity.Session;
+import com.abavilla.fpi.login.mapper.SessionMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Near cache of {@link Session} by username. A session does not change until it expires or is
+ * refreshed, so entries live until the session's {@link Session#getRefreshTokenExpiry()} (capped by
+ * the configured ttl). Lookups that found no session are cached briefly so that first logins do not
+ * repeatedly hit the DB. Cached sessions are also indexed by id, as deletions e.g. by the TTL index
+ * only identify the session by id. Sessions are cached as private copies and every lookup returns a
+ * copy of its own, so callers can modify the session they got without other readers seeing a half
+ * written or never persisted session.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class SessionCache {
+
+  /**
+   * Maximum number of cached sessions
+   */
+  @ConfigProperty(name = "fpi.login.session-cache.max-size")
+  long maxSize;
+
+  /**
+   * Maximum time a session is cached
+   */
+  @ConfigProperty(name = "fpi.login.session-cache.ttl")
+  Duration ttl;
+
+  /**
+   * Time a lookup that found no session is cached
+   */
+  @ConfigProperty(name = "fpi.login.session-cache.negative-ttl")
+  Duration negativeTtl;
+
+  @Inject
+  MeterRegistry registry;
+
+  @Inject
+  SessionMapper mapper;
+
+  private Cache<String, Optional<Session>> cache;
+
+  /**
+   * Username of each cached session by session id
+   */
+  private final Map<ObjectId, String> usernames = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  void init() {
+    cache = Caffeine.newBuilder()
+      .maximumSize(maxSize)
+      .expireAfter(new SessionExpiry())
+      .evictionListener((String username, Optional<Session> session, RemovalCause cause) ->
+        unindex(username, session))
+      .recordStats()
+      .build();
+    CaffeineCacheMetrics.monitor(registry, cache, "login-sessions");
+  }
+
+  /**
+   * Retrieves the cached lookup result of a username.
+   *
+   * @param username Username
+   * @return {@code null} if not cached, otherwise the cached lookup result
+   */
+  public Optional<Session> get(String username) {
+    var cached = cache.getIfPresent(username);
+    return cached == null ? null : cached.map(mapper::copy);
+  }
+
+  /**
+   * Caches the result of a DB lookup, does not overwrite a session cached by a concurrent write.
+   *
+   * @param username Username
+   * @param session Lookup result
+   */
+  public void putLoaded(String username, Optional<Session> session) {
+    cache.asMap().computeIfAbsent(username, key -> {
+      var snapshot = session.map(mapper::copy);
+      index(key, snapshot);
+      return snapshot;
+    });
+  }
+
+  /**
+   * Caches a session that was just written to DB.
+   *
+   * @param session Written session
+   */
+  public void put(Session session) {
+    var cached = Optional.of(mapper.copy(session));
+    cache.asMap().compute(session.getUsername(), (username, previous) -> {
+      if (previous != null) {
+        unindex(username, previous);
+      }
+      index(username, cached);
+      return cached;
+    });
+  }
+
+  /**
+   * Removes the cached session of a username.
+   *
+   * @param username Username
+   */
+  public void invalidate(String username) {
+    var removed = cache.asMap().remove(username);
+    if (removed != null) {
+      unindex(username, removed);
+    }
+  }
+
+  /**
+   * Drops sessions changed by any node, see {@link CacheSyncListener}.
+   *
+   * @param invalidation Invalidation event
+   */
+  void onInvalidation(@Observes CacheInvalidation invalidation) {
+    if (invalidation.source() != CacheInvalidation.Source.SESSION) {
+      return;
+    }
+    if (invalidation.isReset()) {
+      cache.invalidateAll();
+      usernames.clear();
+      return;
+    }
+    // deleted sessions e.g. expired by the TTL index can only be identified by id
+    var username = invalidation.key() != null ? invalidation.key() : usernames.get(invalidation.id());
+    if (username == null) {
+      return;
+    }
+    cache.asMap().computeIfPresent(username, (key, cached) -> {
+      // keeps the entry on the echo of a write which already cached the changed session
+      if (invalidation.document() != null && cached.isPresent() && cached.get().equals(invalidation.document())) {
+        return cached;
+      }
+      unindex(key, cached);
+      return null;
+    });
+  }
+
+  private void index(String username, Optional<Session> session) {
+    session.map(Session::getId).ifPresent(id -> usernames.put(id, username));
+  }
+
+  private void unindex(String username, Optional<Session> session) {
+    if (session != null) {
+      session.map(Session::getId).ifPresent(id -> usernames.remove(id, username));
+    }
+  }
+
+  /**
+   * Expires sessions together with their token, and empty lookups after the negative ttl.
+   */
+  private class SessionExpiry implements Expiry<String, Optional<Session>> {
+
+    @Override
+    public long expireAfterCreate(String username, Optional<Session> session, long currentTime) {
+      if (session.isEmpty()) {
+        return negativeTtl.toNanos();
+      }
+      var untilExpiry = Duration.between(DateUtil.now(), session.get().getRefreshTokenExpiry());
+      if (untilExpiry.isNegative()) {
+        return 0L;
+      }
+      return Math.min(ttl.toNanos(), untilExpiry.toNanos());
+    }
+
+    @Override
+    public long expireAfterUpdate(String username, Optional<Session> session, long currentTime,
+                                  long currentDuration) {
+      return expireAfterCreate(username, session, currentTime);
+    }
+
+    @Override
+    public long expireAfterRead(String username, Optional<Session> session, long currentTime,
+                                long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+}
@@ -0,0 +1,285 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Read-through cache of {@link User} by id, with secondary indexes by platform identity e.g. metaId
+ * and mobile number pointing at the same cached user. Loads take a {@link #stamp()} before reading
+ * from DB and are only cached if the loaded user was not invalidated since, so a load racing a write
+ * can never cache the user as it was before the write. Invalidations are tracked per user, in a fixed
+ * number of stripes, so they don't hold back the loads of other users.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class UserCache {
+
+  private static final String METRIC_PREFIX = "fpi.login.user-cache";
+
+  /**
+   * Number of stripes tracking invalidations, users hashing to the same stripe share it
+   */
+  private static final int VERSION_STRIPES = 4096;
+
+  /**
+   * Maximum number of cached users
+   */
+  @ConfigProperty(name = "fpi.login.user-cache.max-size")
+  long maxSize;
+
+  /**
+   * Time a user is cached after it was loaded
+   */
+  @ConfigProperty(name = "fpi.login.user-cache.ttl")
+  Duration ttl;
+
+  @Inject
+  MeterRegistry registry;
+
+  private Cache<ObjectId, User> cache;
+
+  /**
+   * Id of the cached user with each platform identity
+   */
+  private final Map<IdentityKey, ObjectId> identityIndex = new ConcurrentHashMap<>();
+
+  /**
+   * Sequence of invalidations, stamps are taken from it
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Sequence of the last invalidation of the users of each stripe, loads stamped before it are not
+   * cached
+   */
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+  private Counter idHits;
+
+  private Counter idMisses;
+
+  private Counter identityHits;
+
+  private Counter identityMisses;
+
+  @PostConstruct
+  void init() {
+    cache = Caffeine.newBuilder()
+      .maximumSize(maxSize)
+      .expireAfterWrite(ttl)
+      .evictionListener((ObjectId id, User user, RemovalCause cause) -> unindex(id, user))
+      .recordStats()
+      .build();
+    CaffeineCacheMetrics.monitor(registry, cache, "login-users");
+    idHits = lookups("id", "hit");
+    idMisses = lookups("id", "miss");
+    identityHits = lookups("identity", "hit");
+    identityMisses = lookups("identity", "miss");
+  }
+
+  private Counter lookups(String key, String result) {
+    return Counter.builder(METRIC_PREFIX + ".lookups")
+      .description("User cache lookups by key type, hit ratio is hits over all lookups")
+      .tag("key", key)
+      .tag("result", result)
+      .register(registry);
+  }
+
+  /**
+   * Takes the stamp of a load, to be passed to {@link #put(User, long)} once loaded.
+   *
+   * @return Current invalidation sequence
+   */
+  public long stamp() {
+    return sequence.get();
+  }
+
+  /**
+   * Retrieves a cached user by id.
+   *
+   * @param id User id
+   * @return Cached user, {@code null} if not cached
+   */
+  public User get(ObjectId id) {
+    var user = cache.getIfPresent(id);
+    (user == null ? idMisses : idHits).increment();
+    return user;
+  }
+
+  /**
+   * Retrieves a cached user by its id on a platform.
+   *
+   * @param source Platform
+   * @param externalId Id on the platform
+   * @return Cached user, {@code null} if not cached
+   */
+  public User get(BotSource source, String externalId) {
+    var key = new IdentityKey(source, externalId);
+    var id = identityIndex.get(key);
+    User user = null;
+    if (id != null) {
+      user = cache.getIfPresent(id);
+      if (user == null) {
+        identityIndex.remove(key, id);
+      } else if (!externalId.equals(user.identityOf(source).orElse(null))) {
+        user = null;
+      }
+    }
+    (user == null ? identityMisses : identityHits).increment();
+    return user;
+  }
+
+  /**
+   * Caches a user loaded from or written to DB, unless it was invalidated since the stamp was taken.
+   * The cached user is shared between readers and must not be modified afterwards.
+   *
+   * @param user Loaded user
+   * @param stamp Stamp taken before the load
+   */
+  public void put(User user, long stamp) {
+    if (user == null || user.getId() == null) {
+      return;
+    }
+    cache.asMap().compute(user.getId(), (id, cached) -> {
+      if (versions.get(stripe(id)) > stamp) {
+        return cached;
+      }
+      if (cached != null) {
+        unindex(id, cached);
+      }
+      index(id, user);
+      return user;
+    });
+  }
+
+  /**
+   * Drops a user, and makes loads of the user in flight skip caching their result.
+   *
+   * @param id User id
+   */
+  public void invalidate(ObjectId id) {
+    bumpVersion(id);
+    var removed = cache.asMap().remove(id);
+    if (removed != null) {
+      unindex(id, removed);
+    }
+  }
+
+  /**
+   * Drops all users.
+   */
+  public void invalidateAll() {
+    var version = sequence.incrementAndGet();
+    for (int i = 0; i < VERSION_STRIPES; i++) {
+      versions.accumulateAndGet(i, version, Math::max);
+    }
+    cache.invalidateAll();
+    identityIndex.clear();
+  }
+
+  /**
+   * Updates users changed by any node, see {@link CacheSyncListener}. A cached user is replaced with
+   * the changed user looked up by the change stream rather than dropped, so the echo of this node's
+   * own writes, and the last access updates of every trusted login, don't empty the cache.
+   *
+   * @param invalidation Invalidation event
+   */
+  void onInvalidation(@Observes CacheInvalidation invalidation) {
+    if (invalidation.source() != CacheInvalidation.Source.USER) {
+      return;
+    }
+    if (invalidation.isReset()) {
+      invalidateAll();
+    } else if (invalidation.document() instanceof User changed) {
+      refresh(invalidation.id(), changed);
+    } else {
+      invalidate(invalidation.id());
+    }
+  }
+
+  /**
+   * Replaces a cached user with its changed version, loads of the user in flight are not cached.
+   *
+   * @param id User id
+   * @param changed Changed user
+   */
+  private void refresh(ObjectId id, User changed) {
+    bumpVersion(id);
+    cache.asMap().computeIfPresent(id, (key, cached) -> {
+      unindex(key, cached);
+      index(key, changed);
+      return changed;
+    });
+  }
+
+  private void bumpVersion(ObjectId id) {
+    versions.accumulateAndGet(stripe(id), sequence.incrementAndGet(), Math::max);
+  }
+
+  private static int stripe(ObjectId id) {
+    int hash = id.hashCode();
+    return (hash ^ (hash >>> 16)) & (VERSION_STRIPES - 1);
+  }
+
+  private void index(ObjectId id, User user) {
+    if (user.getIdentities() != null) {
+      for (var identity : user.getIdentities()) {
+        identityIndex.put(new IdentityKey(identity.getSource(), identity.getExternalId()), id);
+      }
+    }
+  }
+
+  private void unindex(ObjectId id, User user) {
+    if (user != null && user.getIdentities() != null) {
+      for (var identity : user.getIdentities()) {
+        identityIndex.remove(new IdentityKey(identity.getSource(), identity.getExternalId()), id);
+      }
+    }
+  }
+
+  /**
+   * Key of the identity index
+   *
+   * @param source Platform
+   * @param externalId Id on the platform
+   */
+  private record IdentityKey(BotSource source, String externalId) {}
+
+}
@@ -0,0 +1,115 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.keycloak.representations.AccessToken;
+
+/**
+ * In-process cache of access tokens whose signature, issuer and expiry were already verified, so
+ * repeated verifications of the same token skip parsing and signature checks. Entries expire with
+ * the token and are all discarded when a signing key is removed from the realm.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class VerifiedTokenCache {
+
+  /**
+   * Maximum number of cached tokens
+   */
+  @ConfigProperty(name = "fpi.login.token-cache.max-size")
+  long maxSize;
+
+  @Inject
+  MeterRegistry registry;
+
+  private Cache<String, AccessToken> cache;
+
+  @PostConstruct
+  void init() {
+    cache = Caffeine.newBuilder()
+      .maximumSize(maxSize)
+      .expireAfter(new TokenExpiry())
+      .recordStats()
+      .build();
+    CaffeineCacheMetrics.monitor(registry, cache, "login-verified-tokens");
+  }
+
+  /**
+   * Retrieves a previously verified token.
+   *
+   * @param token Encoded token
+   * @return Parsed token, or {@code null} if not cached or already expired
+   */
+  public AccessToken get(String token) {
+    return cache.getIfPresent(token);
+  }
+
+  /**
+   * Caches a verified token until it expires.
+   *
+   * @param token Encoded token
+   * @param accessToken Parsed token
+   */
+  public void put(String token, AccessToken accessToken) {
+    cache.put(token, accessToken);
+  }
+
+  void onKeysRotated(@Observes JwksCache.KeysRotated event) {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Expires entries at the token's {@code exp} claim.
+   */
+  private static class TokenExpiry implements Expiry<String, AccessToken> {
+
+    @Override
+    public long expireAfterCreate(String key, AccessToken token, long currentTime) {
+      if (token.getExp() == null) {
+        return 0;
+      }
+      long remaining = TimeUnit.SECONDS.toMillis(token.getExp()) - System.currentTimeMillis();
+      return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remaining));
+    }
+
+    @Override
+    public long expireAfterUpdate(String key, AccessToken token, long currentTime, long currentDuration) {
+      return expireAfterCreate(key, token, currentTime);
+    }
+
+    @Override
+    public long expireAfterRead(String key, AccessToken token, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+}
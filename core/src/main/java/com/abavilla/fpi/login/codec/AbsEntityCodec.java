@@ -0,0 +1,208 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.codec;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import com.abavilla.fpi.fw.entity.mongo.AbsMongoItem;
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+
+/**
+ * Base BSON codec for entities, reads and writes the document directly to and from the entity's
+ * fields without reflection. Writes the same layout as the POJO codec: {@code _id} first, then the
+ * {@code _t} discriminator, then the fields, with {@code null} fields omitted. Unknown fields are
+ * skipped when decoding.
+ *
+ * @param <T> Type of entity
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public abstract class AbsEntityCodec<T extends AbsMongoItem> implements CollectibleCodec<T> {
+
+  /**
+   * Id field of the document
+   */
+  protected static final String ID = "_id";
+
+  /**
+   * Discriminator field of the document
+   */
+  protected static final String DISCRIMINATOR = "_t";
+
+  protected static final String DATE_CREATED = "dateCreated";
+
+  protected static final String DATE_UPDATED = "dateUpdated";
+
+  private static final int MILLIS_PER_SECOND = 1000;
+
+  private static final int NANOS_PER_MILLI = 1_000_000;
+
+  /**
+   * Creates an empty entity to decode into.
+   *
+   * @return Entity
+   */
+  protected abstract T newEntity();
+
+  /**
+   * Writes the entity's own fields, the id, discriminator and dates are already written.
+   *
+   * @param writer BSON writer
+   * @param entity Entity to encode
+   * @param encoderContext Encoder context
+   */
+  protected abstract void encodeFields(BsonWriter writer, T entity, EncoderContext encoderContext);
+
+  /**
+   * Reads the value of a field into the entity.
+   *
+   * @param name Field name
+   * @param reader BSON reader positioned at the value
+   * @param entity Entity to decode into
+   * @param decoderContext Decoder context
+   * @return {@code true} if the field was read, {@code false} if it is unknown and should be skipped
+   */
+  protected abstract boolean decodeField(String name, BsonReader reader, T entity, DecoderContext decoderContext);
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void encode(BsonWriter writer, T entity, EncoderContext encoderContext) {
+    if (encoderContext.isEncodingCollectibleDocument()) {
+      generateIdIfAbsentFromDocument(entity);
+    }
+    writer.writeStartDocument();
+    if (entity.getId() != null) {
+      writer.writeObjectId(ID, entity.getId());
+    }
+    writer.writeString(DISCRIMINATOR, getEncoderClass().getName());
+    writeDateTime(writer, DATE_CREATED, entity.getDateCreated());
+    writeDateTime(writer, DATE_UPDATED, entity.getDateUpdated());
+    encodeFields(writer, entity, encoderContext);
+    writer.writeEndDocument();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public T decode(BsonReader reader, DecoderContext decoderContext) {
+    T entity = newEntity();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String name = reader.readName();
+      if (reader.getCurrentBsonType() == BsonType.NULL) {
+        reader.readNull();
+        continue;
+      }
+      switch (name) {
+        case ID -> entity.setId(reader.readObjectId());
+        case DATE_CREATED -> entity.setDateCreated(readDateTime(reader));
+        case DATE_UPDATED -> entity.setDateUpdated(readDateTime(reader));
+        default -> {
+          if (!decodeField(name, reader, entity, decoderContext)) {
+            reader.skipValue();
+          }
+        }
+      }
+    }
+    reader.readEndDocument();
+    return entity;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public T generateIdIfAbsentFromDocument(T entity) {
+    if (entity.getId() == null) {
+      entity.setId(new ObjectId());
+    }
+    return entity;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean documentHasId(T entity) {
+    return entity.getId() != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public BsonValue getDocumentId(T entity) {
+    if (entity.getId() == null) {
+      throw new IllegalStateException("The entity does not contain an id");
+    }
+    return new BsonObjectId(entity.getId());
+  }
+
+  /**
+   * Writes a string field, omitted if {@code null}.
+   *
+   * @param writer BSON writer
+   * @param name Field name
+   * @param value Value
+   */
+  protected static void writeString(BsonWriter writer, String name, String value) {
+    if (value != null) {
+      writer.writeString(name, value);
+    }
+  }
+
+  /**
+   * Writes a date time field as a UTC BSON date, the same as the driver's {@link LocalDateTime}
+   * codec, omitted if {@code null}.
+   *
+   * @param writer BSON writer
+   * @param name Field name
+   * @param value Value
+   */
+  protected static void writeDateTime(BsonWriter writer, String name, LocalDateTime value) {
+    if (value != null) {
+      writer.writeDateTime(name, value.toEpochSecond(ZoneOffset.UTC) * MILLIS_PER_SECOND +
+        value.getNano() / NANOS_PER_MILLI);
+    }
+  }
+
+  /**
+   * Reads a UTC BSON date as a {@link LocalDateTime}.
+   *
+   * @param reader BSON reader
+   * @return Value
+   */
+  protected static LocalDateTime readDateTime(BsonReader reader) {
+    long millis = reader.readDateTime();
+    return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, MILLIS_PER_SECOND),
+      (int) Math.floorMod(millis, MILLIS_PER_SECOND) * NANOS_PER_MILLI, ZoneOffset.UTC);
+  }
+
+}
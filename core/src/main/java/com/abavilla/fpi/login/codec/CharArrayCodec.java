@@ -27,6 +27,11 @@ import org.bson.codecs.EncoderContext;
 /**
  * BSON Codec for decoding and encoding {@code char[]} arrays.
  * Used by MongoDB driver.
+ * <p>
+ * The driver's {@code BsonWriter} and {@code BsonReader} only write and read strings, so every
+ * value passes through an intermediate {@link String} which cannot be cleared and stays on the
+ * heap until collected. Keeping the value in a {@code char[]} only shortens its lifetime outside
+ * of the codec.
  *
  * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
  */
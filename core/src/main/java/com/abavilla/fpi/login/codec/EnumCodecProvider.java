@@ -19,6 +19,8 @@
 package com.abavilla.fpi.login.codec;
 
 import com.abavilla.fpi.fw.codec.IEnumCodecProvider;
+import com.abavilla.fpi.login.entity.Session;
+import com.abavilla.fpi.login.entity.User;
 import com.abavilla.fpi.login.entity.UserStatus;
 import com.abavilla.fpi.login.ext.entity.ServiceStatus;
 import org.bson.codecs.Codec;
@@ -30,8 +32,19 @@ import org.bson.codecs.Codec;
  * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
  */
 public class EnumCodecProvider implements IEnumCodecProvider {
+
+  private static final CharArrayCodec CHAR_ARRAY_CODEC = new CharArrayCodec();
+
+  private static final UserStatusCodec USER_STATUS_CODEC = new UserStatusCodec();
+
+  private static final ServiceStatusCodec SERVICE_STATUS_CODEC = new ServiceStatusCodec();
+
+  private static final SessionCodec SESSION_CODEC = new SessionCodec();
+
+  private static final UserCodec USER_CODEC = new UserCodec(USER_STATUS_CODEC, SERVICE_STATUS_CODEC);
+
   /**
-   * Provides the codec mapping definition
+   * Provides the codec mapping definition, codecs are stateless and shared between calls.
    *
    * @param clazz Class to decode/encode
    * @return {@link Codec} to use
@@ -41,11 +54,15 @@ public class EnumCodecProvider implements IEnumCodecProvider {
   @SuppressWarnings("unchecked")
   public <T> Codec<T> getCodecProvider(Class<T> clazz) {
     if (clazz == char[].class) {
-      return (Codec<T>) new CharArrayCodec();
+      return (Codec<T>) CHAR_ARRAY_CODEC;
     } else if (clazz == UserStatus.class) {
-      return (Codec<T>) new UserStatusCodec();
+      return (Codec<T>) USER_STATUS_CODEC;
     } else if (clazz == ServiceStatus.class) {
-      return (Codec<T>) new ServiceStatusCodec();
+      return (Codec<T>) SERVICE_STATUS_CODEC;
+    } else if (clazz == Session.class) {
+      return (Codec<T>) SESSION_CODEC;
+    } else if (clazz == User.class) {
+      return (Codec<T>) USER_CODEC;
     }
     return null; // Don't throw here, this tells Mongo this provider doesn't provide a decoder for the requested clazz
   }
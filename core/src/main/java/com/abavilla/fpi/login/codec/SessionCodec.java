@@ -0,0 +1,132 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.codec;
+
+import java.util.ArrayList;
+
+import com.abavilla.fpi.login.entity.Session;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * BSON Codec for decoding and encoding {@link Session} entities without reflection.
+ * <p>
+ * The password hash still passes through an intermediate {@link String} as {@link CharArrayCodec}
+ * does, the driver's {@code BsonWriter} and {@code BsonReader} only write and read strings.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public class SessionCodec extends AbsEntityCodec<Session> {
+
+  private static final String USERNAME = "username";
+
+  private static final String PASSWORD = "password";
+
+  private static final String REFRESH_TOKEN = "refreshToken";
+
+  private static final String ACCESS_TOKEN = "accessToken";
+
+  private static final String REFRESH_TOKEN_EXPIRY = "refreshTokenExpiry";
+
+  private static final String IP_ADDRESS = "ipAddress";
+
+  private static final String USER_AGENT = "userAgent";
+
+  private static final String KEYCLOAK_ROLES = "keycloakRoles";
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected Session newEntity() {
+    return new Session();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void encodeFields(BsonWriter writer, Session session, EncoderContext encoderContext) {
+    writeString(writer, USERNAME, session.getUsername());
+    if (session.getPassword() != null) {
+      writer.writeString(PASSWORD, String.valueOf(session.getPassword()));
+    }
+    writeString(writer, REFRESH_TOKEN, session.getRefreshToken());
+    writeString(writer, ACCESS_TOKEN, session.getAccessToken());
+    writeDateTime(writer, REFRESH_TOKEN_EXPIRY, session.getRefreshTokenExpiry());
+    writeString(writer, IP_ADDRESS, session.getIpAddress());
+    writeString(writer, USER_AGENT, session.getUserAgent());
+    if (session.getKeycloakRoles() != null) {
+      writer.writeStartArray(KEYCLOAK_ROLES);
+      for (String role : session.getKeycloakRoles()) {
+        if (role == null) {
+          writer.writeNull();
+        } else {
+          writer.writeString(role);
+        }
+      }
+      writer.writeEndArray();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected boolean decodeField(String name, BsonReader reader, Session session, DecoderContext decoderContext) {
+    switch (name) {
+      case USERNAME -> session.setUsername(reader.readString());
+      case PASSWORD -> session.setPassword(reader.readString().toCharArray());
+      case REFRESH_TOKEN -> session.setRefreshToken(reader.readString());
+      case ACCESS_TOKEN -> session.setAccessToken(reader.readString());
+      case REFRESH_TOKEN_EXPIRY -> session.setRefreshTokenExpiry(readDateTime(reader));
+      case IP_ADDRESS -> session.setIpAddress(reader.readString());
+      case USER_AGENT -> session.setUserAgent(reader.readString());
+      case KEYCLOAK_ROLES -> {
+        var roles = new ArrayList<String>();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+          if (reader.getCurrentBsonType() == BsonType.NULL) {
+            reader.readNull();
+            roles.add(null);
+          } else {
+            roles.add(reader.readString());
+          }
+        }
+        reader.readEndArray();
+        session.setKeycloakRoles(roles);
+      }
+      default -> {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<Session> getEncoderClass() {
+    return Session.class;
+  }
+}
@@ -0,0 +1,241 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.codec;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.abavilla.fpi.login.entity.PersonName;
+import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import org.apache.commons.lang3.EnumUtils;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * BSON Codec for decoding and encoding {@link User} entities without reflection. The embedded
+ * {@link PersonName} and platform identities are read and written in place, identities are also
+ * read from the per platform fields of documents written before they were introduced. Until the
+ * migration to identities is finalised, those fields are also still written so that a rollback
+ * resolves every user written since.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public class UserCodec extends AbsEntityCodec<User> {
+
+  private static final String IDENTITIES = "identities";
+
+  private static final String SOURCE = "source";
+
+  private static final String EXTERNAL_ID = "externalId";
+
+  /**
+   * Per platform id fields written before the ids moved to {@link #IDENTITIES}, still read so that
+   * users not yet migrated resolve the same
+   */
+  private static final Map<String, BotSource> LEGACY_ID_FIELDS = Map.of(
+    "metaId", BotSource.FB_MSGR,
+    "telegramId", BotSource.TELEGRAM,
+    "viberId", BotSource.VIBER,
+    "mobile", BotSource.SMS);
+
+  /**
+   * Per platform id field of each platform, see {@link #LEGACY_ID_FIELDS}
+   */
+  private static final Map<BotSource, String> LEGACY_FIELD_BY_SOURCE = new EnumMap<>(BotSource.class);
+
+  static {
+    LEGACY_ID_FIELDS.forEach((field, source) -> LEGACY_FIELD_BY_SOURCE.put(source, field));
+  }
+
+  private static final String STATUS = "status";
+
+  private static final String REGISTRATION_DATE = "registrationDate";
+
+  private static final String VERIFIED_DATE = "verifiedDate";
+
+  private static final String LAST_ACCESS = "lastAccess";
+
+  private static final String NAME = "name";
+
+  private static final String SVC_STATUS = "svcStatus";
+
+  private static final String LAST_NAME = "lastName";
+
+  private static final String FIRST_NAME = "firstName";
+
+  private static final String MIDDLE_NAME = "middleName";
+
+  private static final String SUFFIX = "suffix";
+
+  private static final String TITLE = "title";
+
+  private final UserStatusCodec userStatusCodec;
+
+  private final ServiceStatusCodec serviceStatusCodec;
+
+  /**
+   * Creates the codec using the given codecs for the status fields.
+   *
+   * @param userStatusCodec Codec for {@link User#getStatus()}
+   * @param serviceStatusCodec Codec for {@link User#getSvcStatus()}
+   */
+  public UserCodec(UserStatusCodec userStatusCodec, ServiceStatusCodec serviceStatusCodec) {
+    this.userStatusCodec = userStatusCodec;
+    this.serviceStatusCodec = serviceStatusCodec;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected User newEntity() {
+    return new User();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected void encodeFields(BsonWriter writer, User user, EncoderContext encoderContext) {
+    if (user.getIdentities() != null) {
+      writer.writeStartArray(IDENTITIES);
+      for (var identity : user.getIdentities()) {
+        writer.writeStartDocument();
+        writeString(writer, SOURCE, identity.getSource() == null ? null : identity.getSource().name());
+        writeString(writer, EXTERNAL_ID, identity.getExternalId());
+        writer.writeEndDocument();
+      }
+      writer.writeEndArray();
+      for (var identity : user.getIdentities()) {
+        var legacyField = LEGACY_FIELD_BY_SOURCE.get(identity.getSource());
+        if (legacyField != null) {
+          writeString(writer, legacyField, identity.getExternalId());
+        }
+      }
+    }
+    if (user.getStatus() != null) {
+      writer.writeName(STATUS);
+      encoderContext.encodeWithChildContext(userStatusCodec, writer, user.getStatus());
+    }
+    writeDateTime(writer, REGISTRATION_DATE, user.getRegistrationDate());
+    writeDateTime(writer, VERIFIED_DATE, user.getVerifiedDate());
+    writeDateTime(writer, LAST_ACCESS, user.getLastAccess());
+    if (user.getName() != null) {
+      var name = user.getName();
+      writer.writeStartDocument(NAME);
+      writeString(writer, LAST_NAME, name.getLastName());
+      writeString(writer, FIRST_NAME, name.getFirstName());
+      writeString(writer, MIDDLE_NAME, name.getMiddleName());
+      writeString(writer, SUFFIX, name.getSuffix());
+      writeString(writer, TITLE, name.getTitle());
+      writer.writeEndDocument();
+    }
+    if (user.getSvcStatus() != null) {
+      writer.writeName(SVC_STATUS);
+      encoderContext.encodeWithChildContext(serviceStatusCodec, writer, user.getSvcStatus());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  protected boolean decodeField(String name, BsonReader reader, User user, DecoderContext decoderContext) {
+    switch (name) {
+      case IDENTITIES -> decodeIdentities(reader, user);
+      case STATUS -> user.setStatus(decoderContext.decodeWithChildContext(userStatusCodec, reader));
+      case REGISTRATION_DATE -> user.setRegistrationDate(readDateTime(reader));
+      case VERIFIED_DATE -> user.setVerifiedDate(readDateTime(reader));
+      case LAST_ACCESS -> user.setLastAccess(readDateTime(reader));
+      case NAME -> user.setName(decodeName(reader));
+      case SVC_STATUS -> user.setSvcStatus(decoderContext.decodeWithChildContext(serviceStatusCodec, reader));
+      default -> {
+        var legacySource = LEGACY_ID_FIELDS.get(name);
+        if (legacySource == null) {
+          return false;
+        }
+        // identities take precedence over the legacy field, whichever is read first
+        var externalId = reader.readString();
+        if (user.identityOf(legacySource).isEmpty()) {
+          user.putIdentity(legacySource, externalId);
+        }
+      }
+    }
+    return true;
+  }
+
+  private static void decodeIdentities(BsonReader reader, User user) {
+    reader.readStartArray();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      BotSource source = null;
+      String externalId = null;
+      reader.readStartDocument();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        String field = reader.readName();
+        if (reader.getCurrentBsonType() == BsonType.STRING && SOURCE.equals(field)) {
+          source = EnumUtils.getEnum(BotSource.class, reader.readString());
+        } else if (reader.getCurrentBsonType() == BsonType.STRING && EXTERNAL_ID.equals(field)) {
+          externalId = reader.readString();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.readEndDocument();
+      // ids of platforms no longer known are dropped
+      if (source != null) {
+        user.putIdentity(source, externalId);
+      }
+    }
+    reader.readEndArray();
+  }
+
+  private static PersonName decodeName(BsonReader reader) {
+    var name = new PersonName();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String field = reader.readName();
+      if (reader.getCurrentBsonType() == BsonType.NULL) {
+        reader.readNull();
+        continue;
+      }
+      switch (field) {
+        case LAST_NAME -> name.setLastName(reader.readString());
+        case FIRST_NAME -> name.setFirstName(reader.readString());
+        case MIDDLE_NAME -> name.setMiddleName(reader.readString());
+        case SUFFIX -> name.setSuffix(reader.readString());
+        case TITLE -> name.setTitle(reader.readString());
+        default -> reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+    return name;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Class<User> getEncoderClass() {
+    return User.class;
+  }
+}
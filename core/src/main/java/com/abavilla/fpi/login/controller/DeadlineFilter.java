@@ -0,0 +1,44 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.controller;
+
+import java.time.Duration;
+
+import com.abavilla.fpi.login.ext.rest.ApiDeadline;
+import com.abavilla.fpi.login.util.Resilience;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.jboss.resteasy.reactive.server.ServerRequestFilter;
+
+/**
+ * Reads the time the caller waits for the response from the {@link ApiDeadline#HEADER} header, so
+ * that retries made while serving the request stop once the caller has timed out.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public class DeadlineFilter {
+
+  @ServerRequestFilter
+  public void setDeadline(ContainerRequestContext requestContext) {
+    long timeoutMs = NumberUtils.toLong(requestContext.getHeaderString(ApiDeadline.HEADER));
+    if (timeoutMs > 0) {
+      Resilience.setRequestDeadline(Duration.ofMillis(timeoutMs));
+    }
+  }
+}
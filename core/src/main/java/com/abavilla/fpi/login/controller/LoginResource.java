@@ -27,9 +27,15 @@ import com.abavilla.fpi.login.entity.Session;
 import com.abavilla.fpi.login.ext.dto.LoginDto;
 import com.abavilla.fpi.login.ext.dto.PasswordLoginDto;
 import com.abavilla.fpi.login.ext.dto.SessionDto;
+import com.abavilla.fpi.login.ext.dto.TokenVerifyDto;
 import com.abavilla.fpi.login.service.LoginSvc;
+import com.abavilla.fpi.login.service.LoginThrottle;
+import com.abavilla.fpi.login.service.TokenSvc;
+import io.quarkus.arc.properties.UnlessBuildProperty;
 import io.smallrye.mutiny.Uni;
 import io.vertx.core.http.HttpServerRequest;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.NotAuthorizedException;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.QueryParam;
@@ -46,6 +52,8 @@ import org.jboss.resteasy.reactive.server.ServerExceptionMapper;
  * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
  */
 @Path("/fpi/login")
+@UnlessBuildProperty(name = "fpi.login.execution-mode", stringValue = "virtual-threads",
+  enableIfMissing = true)
 public class LoginResource extends AbsBaseResource<LoginDto, Session, LoginSvc> {
 
   /**
@@ -54,6 +62,18 @@ public class LoginResource extends AbsBaseResource<LoginDto, Session, LoginSvc>
   @Context
   HttpServerRequest request;
 
+  /**
+   * Service for verifying access tokens locally
+   */
+  @Inject
+  TokenSvc tokenSvc;
+
+  /**
+   * Rate limits and locks out logins before any credentials are checked
+   */
+  @Inject
+  LoginThrottle throttle;
+
   /**
    * Endpoint to establish a new login session
    * @param loginDto Credentials used for authentication
@@ -67,10 +87,28 @@ public class LoginResource extends AbsBaseResource<LoginDto, Session, LoginSvc>
                                @QueryParam("refreshToken")Boolean refreshToken){
     loginDto.setUserAgent(HttpUtil.getUserAgent(request));
     loginDto.setRemoteAddress(HttpUtil.getClientIpAddr(request));
+    throttle.check(loginDto.getRemoteAddress(), loginDto.getUsername());
+    Uni<SessionDto> session;
     if (refreshToken == null || BooleanUtils.isFalse(refreshToken))
-      return service.login(loginDto);
+      session = service.login(loginDto);
     else
-      return service.refreshToken(loginDto);
+      session = service.refreshToken(loginDto);
+    return session
+      .onFailure(NotAuthorizedException.class).invoke(() -> throttle.recordFailure(loginDto.getUsername()))
+      .invoke(() -> throttle.recordSuccess(loginDto.getUsername()));
+  }
+
+  /**
+   * Endpoint to verify an access token locally, checks signature, expiry and realm roles
+   * @param verifyDto Token to verify and roles it must have
+   *
+   * @return {@link SessionDto} Username, roles and expiry of the token
+   */
+  @POST
+  @Path("verify")
+  @NoCache
+  public Uni<SessionDto> verify(TokenVerifyDto verifyDto) {
+    return tokenSvc.verify(verifyDto);
   }
 
   /**
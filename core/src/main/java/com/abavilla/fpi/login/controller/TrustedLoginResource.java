@@ -28,6 +28,7 @@ import com.abavilla.fpi.login.ext.dto.LoginDto;
 import com.abavilla.fpi.login.ext.dto.SessionDto;
 import com.abavilla.fpi.login.ext.dto.WebhookLoginDto;
 import com.abavilla.fpi.login.service.TrustedLoginSvc;
+import io.quarkus.arc.properties.UnlessBuildProperty;
 import io.smallrye.mutiny.Uni;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
@@ -43,6 +44,8 @@ import org.jboss.resteasy.reactive.server.ServerExceptionMapper;
  * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
  */
 @Path("/fpi/login")
+@UnlessBuildProperty(name = "fpi.login.execution-mode", stringValue = "virtual-threads",
+  enableIfMissing = true)
 public class TrustedLoginResource extends AbsBaseResource<LoginDto, User, TrustedLoginSvc> {
 
   @POST
@@ -20,22 +20,36 @@
 
 package com.abavilla.fpi.login.controller;
 
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
 import com.abavilla.fpi.fw.controller.AbsBaseResource;
 import com.abavilla.fpi.fw.dto.IDto;
 import com.abavilla.fpi.fw.dto.impl.RespDto;
 import com.abavilla.fpi.fw.exceptions.FPISvcEx;
 import com.abavilla.fpi.fw.util.DateUtil;
 import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.login.entity.UserStatus;
+import com.abavilla.fpi.login.ext.dto.UserBatchDto;
 import com.abavilla.fpi.login.ext.dto.UserDto;
+import com.abavilla.fpi.login.ext.entity.ServiceStatus;
 import com.abavilla.fpi.login.service.UserSvc;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.PATCH;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import org.apache.commons.lang3.EnumUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+import org.jboss.resteasy.reactive.RestMediaType;
 import org.jboss.resteasy.reactive.RestResponse;
+import org.jboss.resteasy.reactive.RestStreamElementType;
 import org.jboss.resteasy.reactive.server.ServerExceptionMapper;
 
 /**
@@ -63,7 +77,7 @@ public class UserResource extends AbsBaseResource<UserDto, User, UserSvc> {
     if (StringUtils.isNotBlank(metaId)) {
       userLookup = service.getByMetaId(metaId);
     } else if (StringUtils.isNotBlank(userId)) {
-      userLookup = service.get(userId);
+      userLookup = service.getById(userId);
     } else {
       userLookup = service.getByMobile(mobile);
     }
@@ -76,10 +90,88 @@ public class UserResource extends AbsBaseResource<UserDto, User, UserSvc> {
     });
   }
 
+  /**
+   * Retrieves the users matching any of the given ids, metaIds, telegramIds, viberIds or mobile
+   * numbers, streamed as newline delimited JSON as they are found.
+   *
+   * @param batch Keys of the users
+   * @return Stream of {@link UserDto}
+   */
+  @POST
+  @Path("batch")
+  @Produces(RestMediaType.APPLICATION_NDJSON)
+  @RestStreamElementType(MediaType.APPLICATION_JSON)
+  public Multi<UserDto> getBatch(UserBatchDto batch) {
+    return service.getBatch(batch);
+  }
+
+  /**
+   * Exports the users matching the filters as newline delimited JSON in {@code _id} order. After a
+   * disconnect, the export is resumed by passing the id of the last user received as {@code after}.
+   *
+   * @param status Registration status e.g. {@code VERIFIED}, optional
+   * @param svcStatus Service opt-in status e.g. {@code OPT_IN}, optional
+   * @param lastAccessFrom Inclusive start of the last access range in UTC e.g. {@code 2023-01-01T00:00:00}, optional
+   * @param lastAccessTo Exclusive end of the last access range in UTC, optional
+   * @param after Id of the last user already received, optional
+   * @return Stream of {@link UserDto}
+   */
+  @GET
+  @Path("export")
+  @Produces(RestMediaType.APPLICATION_NDJSON)
+  @RestStreamElementType(MediaType.APPLICATION_JSON)
+  public Multi<UserDto> export(@QueryParam("status") String status,
+                               @QueryParam("svcStatus") String svcStatus,
+                               @QueryParam("lastAccessFrom") String lastAccessFrom,
+                               @QueryParam("lastAccessTo") String lastAccessTo,
+                               @QueryParam("after") String after) {
+    if (StringUtils.isNotBlank(after) && !ObjectId.isValid(after)) {
+      throw new FPISvcEx("Invalid id " + after, RestResponse.StatusCode.BAD_REQUEST);
+    }
+    return service.export(
+      parseEnum(UserStatus.class, "status", status),
+      parseEnum(ServiceStatus.class, "svcStatus", svcStatus),
+      parseDateTime("lastAccessFrom", lastAccessFrom),
+      parseDateTime("lastAccessTo", lastAccessTo),
+      StringUtils.isBlank(after) ? null : new ObjectId(after));
+  }
+
+  private static <E extends Enum<E>> E parseEnum(Class<E> enumClass, String param, String value) {
+    if (StringUtils.isBlank(value)) {
+      return null;
+    }
+    var parsed = EnumUtils.getEnumIgnoreCase(enumClass, value);
+    if (parsed == null) {
+      throw new FPISvcEx(String.format("Invalid %s %s", param, value), RestResponse.StatusCode.BAD_REQUEST);
+    }
+    return parsed;
+  }
+
+  private static LocalDateTime parseDateTime(String param, String value) {
+    if (StringUtils.isBlank(value)) {
+      return null;
+    }
+    try {
+      return LocalDateTime.parse(value);
+    } catch (DateTimeParseException ex) {
+      throw new FPISvcEx(String.format("Invalid %s %s", param, value), RestResponse.StatusCode.BAD_REQUEST);
+    }
+  }
+
+  /**
+   * Patches the non-null fields of {@link UserDto} given the user's {@code id}. If {@code dateUpdated}
+   * is given, the patch is only applied if the user was not updated since, otherwise fails with 412.
+   *
+   * @param id the user id
+   * @param dateUpdated Update date of the user the patch was based on in UTC, optional
+   * @param body Fields to patch
+   * @return Patched {@link UserDto}
+   */
   @Path("{id}")
   @PATCH
-  public Uni<UserDto> patchItem(@PathParam("id") String id, UserDto body) {
-    return service.patch(id, body);
+  public Uni<UserDto> patchItem(@PathParam("id") String id, @QueryParam("dateUpdated") String dateUpdated,
+                                UserDto body) {
+    return service.patchById(id, body, parseDateTime("dateUpdated", dateUpdated));
   }
 
   /**
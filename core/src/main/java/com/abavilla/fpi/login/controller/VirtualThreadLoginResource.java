@@ -0,0 +1,126 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.controller;
+
+import com.abavilla.fpi.fw.controller.AbsBaseResource;
+import com.abavilla.fpi.fw.dto.IDto;
+import com.abavilla.fpi.fw.dto.impl.RespDto;
+import com.abavilla.fpi.fw.exceptions.FPISvcEx;
+import com.abavilla.fpi.fw.util.HttpUtil;
+import com.abavilla.fpi.login.entity.Session;
+import com.abavilla.fpi.login.ext.dto.LoginDto;
+import com.abavilla.fpi.login.ext.dto.PasswordLoginDto;
+import com.abavilla.fpi.login.ext.dto.SessionDto;
+import com.abavilla.fpi.login.ext.dto.TokenVerifyDto;
+import com.abavilla.fpi.login.service.BlockingLoginSvc;
+import com.abavilla.fpi.login.service.LoginSvc;
+import com.abavilla.fpi.login.service.LoginThrottle;
+import io.quarkus.arc.properties.IfBuildProperty;
+import io.smallrye.common.annotation.RunOnVirtualThread;
+import io.vertx.core.http.HttpServerRequest;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
+import org.apache.commons.lang3.BooleanUtils;
+import org.jboss.resteasy.reactive.NoCache;
+import org.jboss.resteasy.reactive.RestResponse;
+import org.jboss.resteasy.reactive.server.ServerExceptionMapper;
+
+/**
+ * Resource for Login to FPI System with handlers running on virtual threads, replaces
+ * {@link LoginResource} when built with {@code fpi.login.execution-mode=virtual-threads}.
+ * URI Path: {@code "/fpi/login"}
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@Path("/fpi/login")
+@IfBuildProperty(name = "fpi.login.execution-mode", stringValue = "virtual-threads")
+public class VirtualThreadLoginResource extends AbsBaseResource<LoginDto, Session, LoginSvc> {
+
+  /**
+   * Context for accessing the information about the HTTP Request, like IP Address, User-Agent and other headers.
+   */
+  @Context
+  HttpServerRequest request;
+
+  @Inject
+  BlockingLoginSvc blockingLoginSvc;
+
+  /**
+   * Rate limits and locks out logins before any credentials are checked
+   */
+  @Inject
+  LoginThrottle throttle;
+
+  /**
+   * Endpoint to establish a new login session
+   * @param loginDto Credentials used for authentication
+   * @param refreshToken Flag to check if login will use a refresh token to refresh an expired access token
+   *
+   * @return {@link SessionDto} Session information
+   */
+  @POST
+  @NoCache
+  @RunOnVirtualThread
+  public SessionDto login(PasswordLoginDto loginDto,
+                          @QueryParam("refreshToken")Boolean refreshToken) {
+    loginDto.setUserAgent(HttpUtil.getUserAgent(request));
+    loginDto.setRemoteAddress(HttpUtil.getClientIpAddr(request));
+    throttle.check(loginDto.getRemoteAddress(), loginDto.getUsername());
+    SessionDto session;
+    try {
+      if (refreshToken == null || BooleanUtils.isFalse(refreshToken))
+        session = blockingLoginSvc.login(loginDto);
+      else
+        session = blockingLoginSvc.refreshToken(loginDto);
+    } catch (NotAuthorizedException ex) {
+      throttle.recordFailure(loginDto.getUsername());
+      throw ex;
+    }
+    throttle.recordSuccess(loginDto.getUsername());
+    return session;
+  }
+
+  /**
+   * Endpoint to verify an access token locally, checks signature, expiry and realm roles
+   * @param verifyDto Token to verify and roles it must have
+   *
+   * @return {@link SessionDto} Username, roles and expiry of the token
+   */
+  @POST
+  @Path("verify")
+  @NoCache
+  @RunOnVirtualThread
+  public SessionDto verify(TokenVerifyDto verifyDto) {
+    return blockingLoginSvc.verify(verifyDto);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  @ServerExceptionMapper
+  protected RestResponse<RespDto<IDto>> mapException(FPISvcEx x) {
+    return super.mapException(x);
+  }
+
+}
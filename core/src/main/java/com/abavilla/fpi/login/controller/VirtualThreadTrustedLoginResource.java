@@ -0,0 +1,81 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.controller;
+
+import com.abavilla.fpi.fw.controller.AbsBaseResource;
+import com.abavilla.fpi.fw.dto.IDto;
+import com.abavilla.fpi.fw.dto.impl.RespDto;
+import com.abavilla.fpi.fw.exceptions.FPISvcEx;
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.login.ext.dto.LoginDto;
+import com.abavilla.fpi.login.ext.dto.SessionDto;
+import com.abavilla.fpi.login.ext.dto.WebhookLoginDto;
+import com.abavilla.fpi.login.service.BlockingTrustedLoginSvc;
+import com.abavilla.fpi.login.service.TrustedLoginSvc;
+import io.quarkus.arc.properties.IfBuildProperty;
+import io.smallrye.common.annotation.RunOnVirtualThread;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.QueryParam;
+import org.jboss.resteasy.reactive.NoCache;
+import org.jboss.resteasy.reactive.RestResponse;
+import org.jboss.resteasy.reactive.server.ServerExceptionMapper;
+
+/**
+ * Resource for Login to FPI System without going through keycloak authentication server, with
+ * handlers running on virtual threads. Replaces {@link TrustedLoginResource} when built with
+ * {@code fpi.login.execution-mode=virtual-threads}.
+ * URI Path: {@code "/fpi/login"}
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@Path("/fpi/login")
+@IfBuildProperty(name = "fpi.login.execution-mode", stringValue = "virtual-threads")
+public class VirtualThreadTrustedLoginResource extends AbsBaseResource<LoginDto, User, TrustedLoginSvc> {
+
+  @Inject
+  BlockingTrustedLoginSvc blockingTrustedLoginSvc;
+
+  @POST
+  @NoCache
+  @Path("trusted")
+  @RunOnVirtualThread
+  public RestResponse<RespDto<SessionDto>> loginFromTrustedIdentityProvider(
+      WebhookLoginDto loginDto,
+      @QueryParam("refreshToken")Boolean refreshToken) {
+    RespDto<SessionDto> resp = new RespDto<>();
+    resp.setTimestamp(DateUtil.nowAsStr());
+    var sessionDto = blockingTrustedLoginSvc.authorizedLogin(loginDto);
+    resp.setStatus(sessionDto.getMessage());
+    resp.setResp(sessionDto);
+    return RestResponse.ok(resp);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  @ServerExceptionMapper
+  protected RestResponse<RespDto<IDto>> mapException(FPISvcEx x) {
+    return super.mapException(x);
+  }
+
+}
@@ -19,9 +19,13 @@
 package com.abavilla.fpi.login.entity;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 
 import com.abavilla.fpi.fw.entity.mongo.AbsMongoItem;
 import com.abavilla.fpi.login.ext.entity.ServiceStatus;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
 import io.quarkus.mongodb.panache.common.MongoEntity;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -41,24 +45,9 @@ import org.bson.codecs.pojo.annotations.BsonDiscriminator;
 public class User extends AbsMongoItem {
 
   /**
-   * User id in Meta
+   * Ids of the user on the bot platforms, at most one per platform
    */
-  private String metaId;
-
-  /**
-   * User id in Telegram
-   */
-  private String telegramId;
-
-  /**
-   * User id in Viber
-   */
-  private String viberId;
-
-  /**
-   * Mobile number
-   */
-  private String mobile;
+  private List<UserIdentity> identities;
 
   /**
    * Registration status
@@ -90,4 +79,40 @@ public class User extends AbsMongoItem {
    */
   private ServiceStatus svcStatus;
 
+  /**
+   * Finds the user's id on a platform.
+   *
+   * @param source Platform
+   * @return Id on the platform, if the user has one
+   */
+  public Optional<String> identityOf(BotSource source) {
+    if (identities != null) {
+      for (var identity : identities) {
+        if (identity.getSource() == source) {
+          return Optional.ofNullable(identity.getExternalId());
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Sets the user's id on a platform, replacing the existing one.
+   *
+   * @param source Platform
+   * @param externalId Id on the platform
+   */
+  public void putIdentity(BotSource source, String externalId) {
+    if (identities == null) {
+      identities = new ArrayList<>();
+    }
+    for (var identity : identities) {
+      if (identity.getSource() == source) {
+        identity.setExternalId(externalId);
+        return;
+      }
+    }
+    identities.add(new UserIdentity(source, externalId));
+  }
+
 }
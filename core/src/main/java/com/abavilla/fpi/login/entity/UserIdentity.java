@@ -0,0 +1,51 @@
+/*************************************************************************
+ * FPI Application - Abavilla                                            *
+ * Copyright (C) 2022  Vince Jerald Villamora                            *
+ *                                                                       *
+ * This program is free software: you can redistribute it and/or modify  *
+ * it under the terms of the GNU General Public License as published by  *
+ * the Free Software Foundation, either version 3 of the License, or     *
+ * (at your option) any later version.                                   *
+ *                                                                       *
+ * This program is distributed in the hope that it will be useful,       *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ * GNU General Public License for more details.                          *
+ *                                                                       *
+ * You should have received a copy of the GNU General Public License     *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.*
+ *************************************************************************/
+
+package com.abavilla.fpi.login.entity;
+
+import com.abavilla.fpi.fw.entity.mongo.AbsMongoField;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+/**
+ * Id of a {@link User} on one of the bot platforms, unique per platform.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+@NoArgsConstructor
+@AllArgsConstructor
+@RegisterForReflection
+public class UserIdentity extends AbsMongoField {
+
+  /**
+   * Platform the id belongs to
+   */
+  private BotSource source;
+
+  /**
+   * Id of the user on the platform, the mobile number for {@link BotSource#SMS}
+   */
+  private String externalId;
+
+}
@@ -52,6 +52,14 @@ public interface SessionMapper extends IDtoToEntityMapper<SessionDto, Session> {
   @Mapping(target = "keycloakRoles", ignore = true)
   Session mapToEntity(SessionDto dto);
 
+  /**
+   * Copies a session, so that the copy can be modified without affecting the original.
+   *
+   * @param session Session to copy
+   * @return Copy of the session
+   */
+  Session copy(Session session);
+
   /**
    * Converts {@link java.time.LocalDateTime} to string using the format specified in
    * {@link com.abavilla.fpi.fw.util.DateUtil#DEFAULT_TIMESTAMP_FORMAT_WITH_TIMEZONE}
@@ -25,15 +25,11 @@ import com.abavilla.fpi.login.entity.User;
 import com.abavilla.fpi.login.ext.dto.UserDto;
 import com.abavilla.fpi.login.ext.dto.WebhookLoginDto;
 import com.abavilla.fpi.telco.ext.enums.BotSource;
-import org.mapstruct.BeanMapping;
-import org.mapstruct.Condition;
+import org.mapstruct.AfterMapping;
 import org.mapstruct.InjectionStrategy;
 import org.mapstruct.Mapper;
-import org.mapstruct.Mapping;
 import org.mapstruct.MappingConstants;
 import org.mapstruct.MappingTarget;
-import org.mapstruct.Named;
-import org.mapstruct.NullValuePropertyMappingStrategy;
 
 /**
  * Mapper used for converting between {@link UserDto} and {@link User} entity
@@ -44,36 +40,64 @@ import org.mapstruct.NullValuePropertyMappingStrategy;
   injectionStrategy = InjectionStrategy.CONSTRUCTOR)
 public interface UserMapper extends IDtoToEntityMapper<UserDto, User> {
 
-  @BeanMapping(ignoreByDefault = true,
-    nullValuePropertyMappingStrategy = NullValuePropertyMappingStrategy.IGNORE)
-  @Mapping(target = "metaId", source = "username",  conditionQualifiedByName = "isMetaId")
-  @Mapping(target = "telegramId", source = "username",  conditionQualifiedByName = "isTelegramId")
-  @Mapping(target = "viberId", source = "username",  conditionQualifiedByName = "isViberId")
-  @Mapping(target = "mobile", source = "username", conditionQualifiedByName = "isMobileNo")
-  void mapLoginToUser(@MappingTarget User user, WebhookLoginDto login);
+  /**
+   * Sets the user's id on the platform the login came from.
+   *
+   * @param user User to map to
+   * @param login Login from a bot platform
+   */
+  default void mapLoginToUser(User user, WebhookLoginDto login) {
+    user.putIdentity(identitySource(login.getBotSource()), login.getUsername());
+  }
 
-  @Named("isMetaId")
-  @Condition
-  default boolean isMetaId(WebhookLoginDto login) {
-    return BotSource.fromValue(login.getBotSource()) == BotSource.FB_MSGR;
+  /**
+   * Resolves the platform the id of a login is stored under, ids from platforms other than Telegram,
+   * Viber and SMS are stored as Meta ids as they were before identities were introduced.
+   *
+   * @param botSource Bot source of the login
+   * @return Platform of the identity
+   */
+  static BotSource identitySource(String botSource) {
+    var source = BotSource.fromValue(botSource);
+    return switch (source) {
+      case TELEGRAM, VIBER, SMS -> source;
+      default -> BotSource.FB_MSGR;
+    };
   }
 
-  @Named("isTelegramId")
-  @Condition
-  default boolean isTelegramId(WebhookLoginDto login) {
-    return BotSource.fromValue(login.getBotSource()) == BotSource.TELEGRAM;
+  /**
+   * Copies the platform identities to the per platform id fields of the DTO.
+   *
+   * @param user Source user
+   * @param dto DTO being mapped to
+   */
+  @AfterMapping
+  default void identitiesToDto(User user, @MappingTarget UserDto dto) {
+    dto.setMetaId(user.identityOf(BotSource.FB_MSGR).orElse(null));
+    dto.setTelegramId(user.identityOf(BotSource.TELEGRAM).orElse(null));
+    dto.setViberId(user.identityOf(BotSource.VIBER).orElse(null));
+    dto.setMobile(user.identityOf(BotSource.SMS).orElse(null));
   }
 
-  @Named("isViberId")
-  @Condition
-  default boolean isViberId(WebhookLoginDto login) {
-    return BotSource.fromValue(login.getBotSource()) == BotSource.VIBER;
+  /**
+   * Sets the platform identities from the per platform id fields of the DTO, fields left
+   * {@code null} keep the user's existing identity so this also serves patches.
+   *
+   * @param dto Source DTO
+   * @param user User being mapped to
+   */
+  @AfterMapping
+  default void identitiesToEntity(UserDto dto, @MappingTarget User user) {
+    putIdentity(user, BotSource.FB_MSGR, dto.getMetaId());
+    putIdentity(user, BotSource.TELEGRAM, dto.getTelegramId());
+    putIdentity(user, BotSource.VIBER, dto.getViberId());
+    putIdentity(user, BotSource.SMS, dto.getMobile());
   }
 
-  @Named("isMobileNo")
-  @Condition
-  default boolean isMobileNo(WebhookLoginDto login) {
-    return BotSource.fromValue(login.getBotSource()) == BotSource.SMS;
+  private static void putIdentity(User user, BotSource source, String externalId) {
+    if (externalId != null) {
+      user.putIdentity(source, externalId);
+    }
   }
 
 }
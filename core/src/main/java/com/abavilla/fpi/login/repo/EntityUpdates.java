@@ -0,0 +1,135 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.repo;
+
+import java.util.Collection;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonValue;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+/**
+ * Builds update documents from entities encoded with the collection's own codecs, so that fields
+ * written by an update are stored exactly as a full write of the entity would store them.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+final class EntityUpdates {
+
+  private static final String SET = "$set";
+
+  private static final String SET_ON_INSERT = "$setOnInsert";
+
+  private static final String LITERAL = "$literal";
+
+  private EntityUpdates() {}
+
+  /**
+   * Encodes an entity to a document, without generating an id if it has none.
+   *
+   * @param registry Codec registry of the collection
+   * @param entity Entity to encode
+   * @return Encoded entity
+   * @param <T> Type of entity
+   */
+  @SuppressWarnings("unchecked")
+  static <T> BsonDocument encode(CodecRegistry registry, T entity) {
+    var codec = (Codec<T>) registry.get(entity.getClass());
+    var document = new BsonDocument();
+    try (var writer = new BsonDocumentWriter(document)) {
+      codec.encode(writer, entity, EncoderContext.builder().build());
+    }
+    return document;
+  }
+
+  /**
+   * Creates an upsert writing every field of the document, the given fields only when the upsert
+   * inserts. Fields missing from the document, i.e. {@code null} in the entity, keep their stored
+   * value.
+   *
+   * @param document Encoded entity
+   * @param insertOnlyFields Fields written only on insert
+   * @return {@code $set} and {@code $setOnInsert} update
+   */
+  static Bson upsert(BsonDocument document, Collection<String> insertOnlyFields) {
+    var set = new BsonDocument();
+    var setOnInsert = new BsonDocument();
+    document.forEach((name, value) ->
+      (insertOnlyFields.contains(name) ? setOnInsert : set).append(name, value));
+    var update = new BsonDocument();
+    if (!set.isEmpty()) {
+      update.append(SET, set);
+    }
+    if (!setOnInsert.isEmpty()) {
+      update.append(SET_ON_INSERT, setOnInsert);
+    }
+    return update;
+  }
+
+  /**
+   * Creates a {@code $setOnInsert} of every field of the document except the given ones, for
+   * upserts which update those fields with other operators when the document already exists.
+   *
+   * @param document Encoded entity
+   * @param updatedFields Fields excluded as they are written by the other operators
+   * @return {@code $setOnInsert} update
+   */
+  static Bson setOnInsert(BsonDocument document, Collection<String> updatedFields) {
+    var setOnInsert = new BsonDocument();
+    document.forEach((name, value) -> {
+      if (!updatedFields.contains(name)) {
+        setOnInsert.append(name, value);
+      }
+    });
+    return new BsonDocument(SET_ON_INSERT, setOnInsert);
+  }
+
+  /**
+   * Creates the fields of a pipeline {@code $set} stage writing every field of the document except
+   * the given ones, with the same effect as a {@code $set} update. Values are wrapped in
+   * {@code $literal} so strings starting with {@code $} are not read as field paths.
+   *
+   * @param document Encoded entity
+   * @param excludedFields Fields not written, or written by other fields of the stage
+   * @return Fields of the {@code $set} stage, more can be appended before the stage is built
+   */
+  static BsonDocument setStageFields(BsonDocument document, Collection<String> excludedFields) {
+    var fields = new BsonDocument();
+    document.forEach((name, value) -> {
+      if (!excludedFields.contains(name)) {
+        fields.append(name, literal(value));
+      }
+    });
+    return fields;
+  }
+
+  /**
+   * Wraps a value so that a pipeline stage writes it as is.
+   *
+   * @param value Value to write
+   * @return {@code $literal} expression of the value
+   */
+  static BsonDocument literal(BsonValue value) {
+    return new BsonDocument(LITERAL, value);
+  }
+}
@@ -0,0 +1,110 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.repo;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.abavilla.fpi.fw.entity.mongo.AbsMongoItem;
+import com.abavilla.fpi.fw.repo.AbsMongoRepo;
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.mutiny.Uni;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.bson.Document;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+/**
+ * Verifies on startup that every field queried by the repository finders is the leading key of an
+ * index, so that a missing migration shows up as a warning (or a failed startup) instead of slow
+ * collection scans.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class IndexVerifier {
+
+  private static final Logger LOG = Logger.getLogger(IndexVerifier.class);
+
+  private static final Duration CHECK_TIMEOUT = Duration.ofSeconds(30);
+
+  /**
+   * Fail startup instead of logging a warning when an index is missing
+   */
+  @ConfigProperty(name = "fpi.login.index-check.fail-on-missing")
+  boolean failOnMissing;
+
+  @Inject
+  UserRepo userRepo;
+
+  @Inject
+  SessionRepo sessionRepo;
+
+  /**
+   * Checks the indexes of all repositories.
+   *
+   * @param evt the startup event
+   */
+  void verify(@Observes StartupEvent evt) {
+    var missing = Uni.combine().all().unis(
+        findUnindexed(userRepo, UserRepo.LOOKUP_FIELDS),
+        findUnindexed(sessionRepo, SessionRepo.LOOKUP_FIELDS))
+      .combinedWith((users, sessions) ->
+        Stream.concat(users.stream(), sessions.stream()).toList())
+      .await().atMost(CHECK_TIMEOUT);
+
+    if (missing.isEmpty()) {
+      return;
+    }
+    var message = "Repository finders without a supporting index: " + missing;
+    if (failOnMissing) {
+      throw new IllegalStateException(message);
+    }
+    LOG.warn(message);
+  }
+
+  /**
+   * Finds the lookup fields of a repository that do not lead any index of its collection.
+   *
+   * @param repo Repository to check
+   * @param fields Fields queried by the repository finders
+   * @return Unindexed fields, prefixed with the collection name
+   */
+  private <T extends AbsMongoItem> Uni<List<String>> findUnindexed(AbsMongoRepo<T> repo, List<String> fields) {
+    var collection = repo.mongoCollection();
+    return collection.listIndexes().collect().asList().map(indexes -> {
+      Set<String> leadingKeys = indexes.stream()
+        .map(index -> index.get("key", Document.class))
+        .filter(key -> key != null && !key.isEmpty())
+        .map(key -> key.keySet().iterator().next())
+        .collect(Collectors.toSet());
+      var name = collection.getNamespace().getCollectionName();
+      return fields.stream()
+        .filter(field -> !leadingKeys.contains(field))
+        .map(field -> name + "." + field)
+        .toList();
+    });
+  }
+
+}
@@ -0,0 +1,177 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.repo;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.abavilla.fpi.login.entity.User;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Uni;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+/**
+ * Write-behind buffer for {@link User#getLastAccess()}. Accesses are coalesced in memory per user and
+ * written periodically as a single unordered bulk write of {@code $max} updates, instead of replacing
+ * the whole user document on every login. The buffer is bounded, accesses of new users are dropped
+ * while it is full, and it is flushed on shutdown.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class LastAccessBuffer {
+
+  private static final Logger LOG = Logger.getLogger(LastAccessBuffer.class);
+
+  private static final Duration SHUTDOWN_FLUSH_TIMEOUT = Duration.ofSeconds(10);
+
+  /**
+   * Maximum number of users with a pending access
+   */
+  @ConfigProperty(name = "fpi.login.last-access.max-pending")
+  int maxPending;
+
+  @Inject
+  UserRepo repo;
+
+  @Inject
+  MeterRegistry registry;
+
+  /**
+   * Latest access per user not yet written to DB
+   */
+  private final Map<ObjectId, LocalDateTime> pending = new ConcurrentHashMap<>();
+
+  /**
+   * Flush currently being written, shared by concurrent flush requests
+   */
+  private final AtomicReference<Uni<Void>> inflight = new AtomicReference<>();
+
+  private Counter dropped;
+
+  @PostConstruct
+  void init() {
+    registry.gaugeMapSize("fpi.login.last-access.pending", Tags.empty(), pending);
+    dropped = Counter.builder("fpi.login.last-access.dropped")
+      .description("Accesses dropped because the buffer was full")
+      .register(registry);
+  }
+
+  /**
+   * Records an access of a user, to be written on the next flush.
+   *
+   * @param userId User id
+   * @param accessedAt Date and time of access
+   */
+  public void record(ObjectId userId, LocalDateTime accessedAt) {
+    if (pending.size() >= maxPending && !pending.containsKey(userId)) {
+      dropped.increment();
+      flushInBackground();
+      return;
+    }
+    pending.merge(userId, accessedAt, (previous, latest) -> latest.isAfter(previous) ? latest : previous);
+    if (pending.size() >= maxPending) {
+      flushInBackground();
+    }
+  }
+
+  @Scheduled(every = "{fpi.login.last-access.flush-interval}",
+    concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  Uni<Void> scheduledFlush() {
+    return flush();
+  }
+
+  void onStop(@Observes ShutdownEvent evt) {
+    // second flush picks up accesses recorded while a flush was already in progress
+    flush().await().atMost(SHUTDOWN_FLUSH_TIMEOUT);
+    flush().await().atMost(SHUTDOWN_FLUSH_TIMEOUT);
+  }
+
+  /**
+   * Writes all pending accesses, joining the flush in progress if there is one. Accesses that
+   * failed to be written are put back for the next flush.
+   *
+   * @return Completion of the flush
+   */
+  public Uni<Void> flush() {
+    var running = inflight.get();
+    if (running != null) {
+      return running;
+    }
+    Uni<Void> flight = Uni.createFrom().deferred(this::writePending)
+      .eventually(() -> inflight.set(null))
+      .memoize().indefinitely();
+    if (inflight.compareAndSet(null, flight)) {
+      return flight;
+    }
+    return flush();
+  }
+
+  private void flushInBackground() {
+    flush().subscribe().with(ignored -> {}, ex -> LOG.warn("Unable to flush last access buffer", ex));
+  }
+
+  private Uni<Void> writePending() {
+    if (pending.isEmpty()) {
+      return Uni.createFrom().voidItem();
+    }
+    Map<ObjectId, LocalDateTime> batch = new HashMap<>();
+    for (var userId : new ArrayList<>(pending.keySet())) {
+      var accessedAt = pending.remove(userId);
+      if (accessedAt != null) {
+        batch.put(userId, accessedAt);
+      }
+    }
+    var updates = batch.entrySet().stream()
+      .map(access -> new UpdateOneModel<User>(
+        Filters.eq("_id", access.getKey()),
+        Updates.combine(
+          Updates.max("lastAccess", access.getValue()),
+          Updates.max("dateUpdated", access.getValue()))))
+      .toList();
+    return repo.mongoCollection().bulkWrite(updates, new BulkWriteOptions().ordered(false))
+      .replaceWithVoid()
+      .onFailure().recoverWithUni(ex -> {
+        LOG.warnf(ex, "Unable to write last access of %d users, retrying on next flush", batch.size());
+        batch.forEach((userId, accessedAt) ->
+          pending.merge(userId, accessedAt, (latest, failed) -> latest.isAfter(failed) ? latest : failed));
+        return Uni.createFrom().voidItem();
+      });
+  }
+
+}
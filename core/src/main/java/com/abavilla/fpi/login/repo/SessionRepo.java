@@ -18,21 +18,60 @@
 
 package com.abavilla.fpi.login.repo;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import com.abavilla.fpi.fw.repo.AbsMongoRepo;
+import com.abavilla.fpi.login.cache.SessionCache;
 import com.abavilla.fpi.login.entity.Session;
+import com.abavilla.fpi.login.util.Resilience;
+import com.abavilla.fpi.login.util.Resilience.Dependency;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import io.quarkus.mongodb.FindOptions;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 /**
- * Repository layer for managing the session table in DB.
+ * Repository layer for managing the session table in DB. Lookups by username are served from
+ * {@link SessionCache} and writes keep the cache up to date. Lookups and writes on the login path
+ * go through the database circuit breaker of {@link Resilience}.
  *
  * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
  */
 @ApplicationScoped
 public class SessionRepo extends AbsMongoRepo<Session> {
 
+  /**
+   * Fields queried by the finders, each must be the leading key of an index
+   */
+  public static final List<String> LOOKUP_FIELDS = List.of("username");
+
+  /**
+   * Fields written only when {@link #upsert(Session)} inserts a new session
+   */
+  private static final Set<String> INSERT_ONLY_FIELDS = Set.of("_id", "_t", "dateCreated");
+
+  private static final String REFRESH_TOKEN_EXPIRY = "refreshTokenExpiry";
+
+  @Inject
+  SessionCache sessionCache;
+
+  /**
+   * Circuit breaker of the database
+   */
+  @Inject
+  Resilience resilience;
+
   /**
    * Finds an existing active session by username
    * @param username Username to find
@@ -40,6 +79,147 @@ public class SessionRepo extends AbsMongoRepo<Session> {
    * @return Session found
    */
   public Uni<Optional<Session>> findByUsername(String username){
-    return find("username", username).firstResultOptional();
+    // deferred so that retries of the returned Uni consult the cache again
+    return Uni.createFrom().deferred(() -> {
+      var cached = sessionCache.get(username);
+      if (cached != null) {
+        return Uni.createFrom().item(cached);
+      }
+      return resilience.guard(Dependency.MONGO, find("username", username).firstResultOptional())
+        .invoke(found -> sessionCache.putLoaded(username, found));
+    });
+  }
+
+  /**
+   * Finds a page of the sessions whose token expires within the given range and which were not
+   * written since the given time or have no update date, soonest first, using the expiry index.
+   *
+   * @param from Exclusive start of the range
+   * @param to Inclusive end of the range
+   * @param writtenBefore Sessions written at or after this time are skipped
+   * @param excludedIds Ids of sessions to skip
+   * @param after Last session of the previous page, {@code null} for the first page
+   * @param limit Maximum number of sessions to return
+   * @return Sessions found
+   */
+  public Uni<List<Session>> findExpiring(LocalDateTime from, LocalDateTime to, LocalDateTime writtenBefore,
+                                         Collection<ObjectId> excludedIds, Session after, int limit) {
+    var filter = expiringFilter(from, to, writtenBefore, excludedIds);
+    if (after != null) {
+      filter = Filters.and(filter, Filters.or(
+        Filters.gt(REFRESH_TOKEN_EXPIRY, after.getRefreshTokenExpiry()),
+        Filters.and(Filters.eq(REFRESH_TOKEN_EXPIRY, after.getRefreshTokenExpiry()),
+          Filters.gt("_id", after.getId()))));
+    }
+    return mongoCollection().find(filter,
+        new FindOptions().sort(Sorts.ascending(REFRESH_TOKEN_EXPIRY, "_id")).limit(limit))
+      .collect().asList();
+  }
+
+  /**
+   * Counts sessions whose token expires within the given range and which were not written since
+   * the given time.
+   *
+   * @param from Exclusive start of the range
+   * @param to Inclusive end of the range
+   * @param writtenBefore Sessions written at or after this time are skipped
+   * @param excludedIds Ids of sessions to skip
+   * @return Number of sessions
+   */
+  public Uni<Long> countExpiring(LocalDateTime from, LocalDateTime to, LocalDateTime writtenBefore,
+                                 Collection<ObjectId> excludedIds) {
+    return mongoCollection().countDocuments(expiringFilter(from, to, writtenBefore, excludedIds));
+  }
+
+  private static Bson expiringFilter(LocalDateTime from, LocalDateTime to, LocalDateTime writtenBefore,
+                                     Collection<ObjectId> excludedIds) {
+    return Filters.and(
+      Filters.gt(REFRESH_TOKEN_EXPIRY, from),
+      Filters.lte(REFRESH_TOKEN_EXPIRY, to),
+      // sessions written before update dates were recorded have none
+      Filters.or(Filters.lt("dateUpdated", writtenBefore), Filters.eq("dateUpdated", null)),
+      Filters.nin("_id", excludedIds));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Uni<Session> persist(Session session) {
+    return cacheWrite(session, super.persist(session));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Uni<Session> update(Session session) {
+    return cacheWrite(session, super.update(session));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Uni<Session> persistOrUpdate(Session session) {
+    return cacheWrite(session, super.persistOrUpdate(session));
+  }
+
+  /**
+   * Writes the whole session in a single atomic {@code findOneAndUpdate} keyed on the unique
+   * username index, inserting it if the user has no session yet. The id and creation date are
+   * only written on insert, so concurrent logins of the same user converge on one session instead
+   * of failing with a duplicate key.
+   *
+   * @param session Session to write
+   * @return Session as stored after the write
+   */
+  public Uni<Session> upsert(Session session) {
+    return cacheWrite(session, upsertWrite(session));
+  }
+
+  /**
+   * Writes only the token fields of an existing session with a partial {@code $set}, falls back
+   * to upserting the whole session if it no longer exists e.g. deleted by the expiry index.
+   * <p>
+   * The session as stored is returned and cached rather than the given one, its dates are
+   * truncated to the milliseconds of BSON dates, so it equals the document of the change event
+   * echoing this write and the caches keep it.
+   *
+   * @param session Session with renewed tokens
+   * @return Session as stored after the write
+   */
+  public Uni<Session> updateTokens(Session session) {
+    var update = Updates.combine(
+      Updates.set("accessToken", session.getAccessToken()),
+      Updates.set("refreshToken", session.getRefreshToken()),
+      Updates.set(REFRESH_TOKEN_EXPIRY, session.getRefreshTokenExpiry()),
+      Updates.set("dateUpdated", session.getDateUpdated()));
+    return cacheWrite(session, mongoCollection().findOneAndUpdate(
+        Filters.eq("_id", session.getId()), update,
+        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER))
+      .onItem().ifNull().switchTo(() -> upsertWrite(session)));
+  }
+
+  private Uni<Session> upsertWrite(Session session) {
+    var document = EntityUpdates.encode(mongoCollection().getCodecRegistry(), session);
+    return mongoCollection().findOneAndUpdate(
+      Filters.eq("username", session.getUsername()),
+      EntityUpdates.upsert(document, INSERT_ONLY_FIELDS),
+      new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+  }
+
+  /**
+   * Caches the session once written, or drops the cached session if the write failed since the
+   * DB state is then unknown.
+   *
+   * @param session Session being written
+   * @param write Write operation
+   * @return Written session
+   */
+  private Uni<Session> cacheWrite(Session session, Uni<Session> write) {
+    return resilience.guard(Dependency.MONGO, write)
+      .invoke(sessionCache::put)
+      .onFailure().invoke(() -> sessionCache.invalidate(session.getUsername()));
   }
 }
@@ -18,30 +18,254 @@
 
 package com.abavilla.fpi.login.repo;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import com.abavilla.fpi.fw.repo.AbsMongoRepo;
 import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.login.util.Resilience;
+import com.abavilla.fpi.login.util.Resilience.Dependency;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import io.quarkus.mongodb.FindOptions;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
+/**
+ * Repository layer for managing the system users table in DB. Users are resolved by their platform
+ * identities through a single unique multikey index, so finders stop at the first match. Finders
+ * and inserts go through the database circuit breaker of {@link Resilience}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
 @ApplicationScoped
 public class UserRepo extends AbsMongoRepo<User> {
 
-  public Uni<Optional<User>> findByMetaId(String metaId) {
-    return find("{'metaId': ?1}", metaId).singleResultOptional();
+  /**
+   * Fields queried by the finders, each must be the leading key of an index
+   */
+  public static final List<String> LOOKUP_FIELDS = List.of("identities.source");
+
+  private static final String IDENTITIES = "identities";
+
+  private static final String SOURCE = "source";
+
+  private static final String EXTERNAL_ID = "externalId";
+
+  private static final String VALUE_FIELD = "value";
+
+  private static final String DATE_UPDATED = "dateUpdated";
+
+  /**
+   * Fields {@link #patch} never writes as is, identities are merged with the stored ones instead
+   */
+  private static final Set<String> UNPATCHED_FIELDS = Set.of("_id", "_t", "dateCreated", IDENTITIES);
+
+  /**
+   * Circuit breaker of the database
+   */
+  @Inject
+  Resilience resilience;
+
+  /**
+   * Finds the user with the given id.
+   *
+   * @param id User id
+   * @return User found
+   */
+  public Uni<Optional<User>> findByObjectId(ObjectId id) {
+    return resilience.guard(Dependency.MONGO, mongoCollection().find(Filters.eq("_id", id),
+        new FindOptions().limit(1))
+      .collect().first().map(Optional::ofNullable));
+  }
+
+  /**
+   * Finds the user with the given id on a platform, using the identities index.
+   *
+   * @param source Platform
+   * @param externalId Id on the platform
+   * @return User found
+   */
+  public Uni<Optional<User>> findByIdentity(BotSource source, String externalId) {
+    return resilience.guard(Dependency.MONGO, mongoCollection().find(identityFilter(source, externalId),
+        new FindOptions().limit(1))
+      .collect().first().map(Optional::ofNullable));
   }
 
-  public Uni<Optional<User>> findByTelegramId(String tgId) {
-    return find("{'telegramId': ?1}", tgId).singleResultOptional();
+  /**
+   * Registers a user keyed by a platform identity in a single atomic {@code findOneAndUpdate}. A new user
+   * is inserted whole with {@code $setOnInsert}, so duplicate first contacts can't race each other. An
+   * existing user is left untouched, the update writes nothing and produces no change event, its last
+   * access is recorded through {@link LastAccessBuffer} instead.
+   *
+   * @param source Platform
+   * @param externalId Id on the platform
+   * @param newUser User to insert if there is none with the identity
+   * @return The registered user and whether it was inserted
+   */
+  public Uni<Registration> register(BotSource source, String externalId, User newUser) {
+    if (newUser.getId() == null) {
+      newUser.setId(new ObjectId());
+    }
+    var update = EntityUpdates.setOnInsert(EntityUpdates.encode(mongoCollection().getCodecRegistry(), newUser),
+      Set.of());
+    return resilience.guard(Dependency.MONGO, mongoCollection().findOneAndUpdate(
+        identityFilter(source, externalId), update,
+        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.BEFORE)))
+      .map(existing -> existing == null ? new Registration(newUser, true) : new Registration(existing, false));
   }
 
-  public Uni<Optional<User>> findByViberId(String viberId) {
-    return find("{'viberId': ?1}", viberId).singleResultOptional();
+  /**
+   * Writes the non-null fields of a patch to a user in a single atomic {@code findOneAndUpdate}, without
+   * reading the user first. Identities in the patch replace the stored identity of their platform, the
+   * identities of other platforms are kept.
+   *
+   * @param id User id
+   * @param patch Fields to write, {@code null} fields keep their stored value
+   * @param dateUpdated If given, the user is only patched if its update date is still this
+   * @return Patched user, {@code null} if there is no user with the id and update date
+   */
+  public Uni<User> patch(ObjectId id, User patch, LocalDateTime dateUpdated) {
+    var filter = dateUpdated == null ? Filters.eq("_id", id) :
+      Filters.and(Filters.eq("_id", id), Filters.eq(DATE_UPDATED, dateUpdated));
+    return resilience.guard(Dependency.MONGO, mongoCollection().findOneAndUpdate(filter,
+      patchUpdate(mongoCollection().getCodecRegistry(), patch),
+      new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)));
   }
 
-  public Uni<Optional<User>> findByMobileNo(String mobile) {
-    return find("{'mobile': ?1}", mobile).singleResultOptional();
+  /**
+   * Creates the pipeline update of {@link #patch}, a single {@code $set} stage writing the non-null
+   * fields of the patch and merging its identities with the stored ones.
+   *
+   * @param registry Codec registry of the collection
+   * @param patch Fields to write, {@code null} fields keep their stored value
+   * @return Pipeline update
+   */
+  public static List<Bson> patchUpdate(CodecRegistry registry, User patch) {
+    var document = EntityUpdates.encode(registry, patch);
+    var fields = EntityUpdates.setStageFields(document, UNPATCHED_FIELDS);
+    if (document.containsKey(IDENTITIES) && !patch.getIdentities().isEmpty()) {
+      fields.append(IDENTITIES, mergeIdentities(patch, document.getArray(IDENTITIES)));
+    }
+    return List.of(new BsonDocument("$set", fields));
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Uni<User> persist(User user) {
+    return resilience.guard(Dependency.MONGO, super.persist(user));
+  }
+
+  /**
+   * Streams the users with any of the given ids on a platform with a single {@code $in} query.
+   *
+   * @param source Platform
+   * @param externalIds Ids on the platform
+   * @return Matching users
+   */
+  public Multi<User> streamByIdentityIn(BotSource source, Collection<String> externalIds) {
+    return mongoCollection().find(Filters.elemMatch(IDENTITIES, Filters.and(
+      Filters.eq(SOURCE, source.name()), Filters.in(EXTERNAL_ID, externalIds))));
+  }
+
+  /**
+   * Streams the users whose field matches any of the given values with a single {@code $in} query.
+   *
+   * @param field Field to match, e.g. {@code _id}
+   * @param values Values to match
+   * @return Matching users
+   */
+  public Multi<User> streamByFieldIn(String field, Collection<?> values) {
+    return find(new Document(field, new Document("$in", values))).stream();
+  }
+
+  /**
+   * Streams the users matching the filter in {@code _id} order over a server side cursor, the
+   * cursor only fetches the next batch once the subscriber has requested it.
+   *
+   * @param filter Query filter
+   * @param batchSize Number of users fetched per round trip
+   * @return Matching users
+   */
+  public Multi<User> streamInIdOrder(Bson filter, int batchSize) {
+    return mongoCollection().find(filter,
+      new FindOptions().sort(Sorts.ascending("_id")).batchSize(batchSize));
+  }
+
+  /**
+   * Encodes a value the same way it is stored in the collection, used to match fields written by
+   * custom codecs such as enums.
+   *
+   * @param value Value to encode
+   * @return Encoded value
+   * @param <T> Type of value
+   */
+  @SuppressWarnings("unchecked")
+  public <T> BsonValue toBsonValue(T value) {
+    var codec = (Codec<T>) mongoCollection().getCodecRegistry().get(value.getClass());
+    var document = new BsonDocument();
+    try (var writer = new BsonDocumentWriter(document)) {
+      writer.writeStartDocument();
+      writer.writeName(VALUE_FIELD);
+      codec.encode(writer, value, EncoderContext.builder().build());
+      writer.writeEndDocument();
+    }
+    return document.get(VALUE_FIELD);
+  }
+
+  /**
+   * Creates the expression of the stored identities of the platforms not in the patch, followed by
+   * the identities of the patch.
+   *
+   * @param patch Patch with identities
+   * @param patched Encoded identities of the patch
+   * @return {@code $concatArrays} expression
+   */
+  private static BsonDocument mergeIdentities(User patch, BsonArray patched) {
+    var sources = new BsonArray(patch.getIdentities().stream()
+      .map(identity -> (BsonValue) new BsonString(identity.getSource().name())).toList());
+    var storedOfOtherSources = new BsonDocument("$filter", new BsonDocument()
+      .append("input", new BsonDocument("$ifNull",
+        new BsonArray(List.of(new BsonString("$" + IDENTITIES), new BsonArray()))))
+      .append("as", new BsonString("identity"))
+      .append("cond", new BsonDocument("$not", new BsonArray(List.of(new BsonDocument("$in",
+        new BsonArray(List.of(new BsonString("$$identity." + SOURCE), EntityUpdates.literal(sources)))))))));
+    return new BsonDocument("$concatArrays",
+      new BsonArray(List.of(storedOfOtherSources, EntityUpdates.literal(patched))));
+  }
+
+  private static Bson identityFilter(BotSource source, String externalId) {
+    return Filters.elemMatch(IDENTITIES, Filters.and(
+      Filters.eq(SOURCE, source.name()), Filters.eq(EXTERNAL_ID, externalId)));
+  }
+
+  /**
+   * Result of {@link #register}
+   *
+   * @param user Registered user, as written for a new user or as found with the access applied
+   * @param created Whether the user was inserted
+   */
+  public record Registration(User user, boolean created) {}
+
 }
@@ -0,0 +1,198 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.rest;
+
+import java.time.Duration;
+
+import com.abavilla.fpi.login.util.Resilience;
+import com.abavilla.fpi.login.util.Resilience.Dependency;
+import io.smallrye.mutiny.Uni;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.mutiny.core.MultiMap;
+import io.vertx.mutiny.core.Vertx;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
+import io.vertx.mutiny.ext.web.client.WebClient;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.authorization.client.util.HttpResponseException;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.representations.AccessTokenResponse;
+
+/**
+ * Non-blocking client for the Keycloak OpenID Connect token and certificate endpoints. Replaces
+ * the blocking {@link org.keycloak.authorization.client.AuthzClient} so that token requests never
+ * hold the Vert.x event loop for the duration of the round trip. Calls go through the keycloak
+ * circuit breaker of {@link Resilience}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class KeycloakTokenClient {
+
+  /**
+   * Token endpoint path relative to the realm url
+   */
+  private static final String TOKEN_ENDPOINT = "/protocol/openid-connect/token";
+
+  /**
+   * JSON Web Key Set endpoint path relative to the realm url
+   */
+  private static final String CERTS_ENDPOINT = "/protocol/openid-connect/certs";
+
+  /**
+   * Realm url of the keycloak server
+   */
+  @ConfigProperty(name = "quarkus.oidc.auth-server-url")
+  String authServerUrl;
+
+  @ConfigProperty(name = "quarkus.oidc.client-id")
+  String clientId;
+
+  @ConfigProperty(name = "quarkus.oidc.credentials.secret")
+  String clientSecret;
+
+  @ConfigProperty(name = "quarkus.oidc.tls.verification")
+  String tlsVerification;
+
+  /**
+   * Maximum number of pooled connections to the keycloak server
+   */
+  @ConfigProperty(name = "fpi.login.keycloak.max-pool-size")
+  int maxPoolSize;
+
+  /**
+   * Time allowed for each token request before it is failed
+   */
+  @ConfigProperty(name = "fpi.login.keycloak.timeout")
+  Duration timeout;
+
+  @Inject
+  Vertx vertx;
+
+  /**
+   * Circuit breaker of the keycloak server
+   */
+  @Inject
+  Resilience resilience;
+
+  private WebClient webClient;
+
+  private String tokenEndpoint;
+
+  private String certsEndpoint;
+
+  @PostConstruct
+  void init() {
+    var options = new WebClientOptions()
+      .setMaxPoolSize(maxPoolSize)
+      .setConnectTimeout((int) timeout.toMillis())
+      .setKeepAlive(true);
+    if (StringUtils.equalsIgnoreCase(tlsVerification, "none")) {
+      options.setTrustAll(true).setVerifyHost(false);
+    }
+    webClient = WebClient.create(vertx, options);
+    tokenEndpoint = StringUtils.removeEnd(authServerUrl, "/") + TOKEN_ENDPOINT;
+    certsEndpoint = StringUtils.removeEnd(authServerUrl, "/") + CERTS_ENDPOINT;
+  }
+
+  @PreDestroy
+  void close() {
+    webClient.close();
+  }
+
+  /**
+   * Obtains an access token using the resource owner password grant.
+   *
+   * @param username Username
+   * @param password Password
+   * @return {@link AccessTokenResponse} from keycloak, fails with {@link HttpResponseException}
+   * if keycloak rejected the request
+   */
+  public Uni<AccessTokenResponse> obtainAccessToken(String username, String password) {
+    var form = MultiMap.caseInsensitiveMultiMap()
+      .add(OAuth2Constants.GRANT_TYPE, OAuth2Constants.PASSWORD)
+      .add(OAuth2Constants.USERNAME, username)
+      .add(OAuth2Constants.PASSWORD, password);
+    return requestToken(form);
+  }
+
+  /**
+   * Exchanges a refresh token for a new access token using the refresh token grant.
+   *
+   * @param refreshToken Refresh token issued with a previous token response
+   * @return {@link AccessTokenResponse} from keycloak, fails with {@link HttpResponseException}
+   * if keycloak rejected the refresh token
+   */
+  public Uni<AccessTokenResponse> refreshAccessToken(String refreshToken) {
+    var form = MultiMap.caseInsensitiveMultiMap()
+      .add(OAuth2Constants.GRANT_TYPE, OAuth2Constants.REFRESH_TOKEN)
+      .add(OAuth2Constants.REFRESH_TOKEN, refreshToken);
+    return requestToken(form);
+  }
+
+  /**
+   * Retrieves the realm's public signing keys.
+   *
+   * @return {@link JSONWebKeySet} of the realm, fails with {@link HttpResponseException} if keycloak
+   * rejected the request
+   */
+  public Uni<JSONWebKeySet> fetchJwks() {
+    return resilience.guard(Dependency.KEYCLOAK, webClient.getAbs(certsEndpoint)
+      .timeout(timeout.toMillis())
+      .send()
+      .map(resp -> {
+        checkStatus(resp, "Unexpected response from certs endpoint");
+        return resp.bodyAsJson(JSONWebKeySet.class);
+      }));
+  }
+
+  /**
+   * Posts the grant to the token endpoint with the client credentials attached.
+   *
+   * @param form Grant parameters
+   * @return {@link AccessTokenResponse} from keycloak
+   */
+  private Uni<AccessTokenResponse> requestToken(MultiMap form) {
+    form.add(OAuth2Constants.CLIENT_ID, clientId)
+      .add(OAuth2Constants.CLIENT_SECRET, clientSecret);
+    return resilience.guard(Dependency.KEYCLOAK, webClient.postAbs(tokenEndpoint)
+      .timeout(timeout.toMillis())
+      .sendForm(form)
+      .map(this::readTokenResponse));
+  }
+
+  private AccessTokenResponse readTokenResponse(HttpResponse<?> resp) {
+    checkStatus(resp, "Unexpected response from token endpoint");
+    return resp.bodyAsJson(AccessTokenResponse.class);
+  }
+
+  private static void checkStatus(HttpResponse<?> resp, String message) {
+    if (resp.statusCode() != 200) {
+      var body = resp.bodyAsBuffer();
+      throw new HttpResponseException(message,
+        resp.statusCode(), resp.statusMessage(), body == null ? new byte[0] : body.getBytes());
+    }
+  }
+
+}
@@ -0,0 +1,87 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.service;
+
+import java.time.Duration;
+
+import com.abavilla.fpi.login.ext.dto.PasswordLoginDto;
+import com.abavilla.fpi.login.ext.dto.SessionDto;
+import com.abavilla.fpi.login.ext.dto.TokenVerifyDto;
+import io.quarkus.arc.properties.IfBuildProperty;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Imperative counterpart of {@link LoginSvc} for the virtual thread execution mode. This is a thin
+ * wrapper which parks the calling virtual thread until the reactive pipeline of {@link LoginSvc}
+ * completes, the repository, BCrypt and keycloak calls are not reimplemented as blocking calls and
+ * still run on the event loop and the hash pool of {@link HashSvc}. The mode therefore shares the
+ * caching, coalescing and retries of the reactive pipeline instead of duplicating them, and only
+ * moves the request handling onto virtual threads.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+@IfBuildProperty(name = "fpi.login.execution-mode", stringValue = "virtual-threads")
+public class BlockingLoginSvc {
+
+  /**
+   * Longest time a caller waits for the pipeline to complete
+   */
+  @ConfigProperty(name = "fpi.login.virtual-threads.await-timeout")
+  Duration awaitTimeout;
+
+  @Inject
+  LoginSvc loginSvc;
+
+  @Inject
+  TokenSvc tokenSvc;
+
+  /**
+   * Performs login, if existing session is detected, return currently established token.
+   *
+   * @param login Login credentials
+   * @return {@link SessionDto} Session information
+   */
+  public SessionDto login(PasswordLoginDto login) {
+    return loginSvc.login(login).await().atMost(awaitTimeout);
+  }
+
+  /**
+   * Force to retrieve a new access token from authentication server.
+   *
+   * @param login Login credentials
+   * @return {@link SessionDto} Session information
+   */
+  public SessionDto refreshToken(PasswordLoginDto login) {
+    return loginSvc.refreshToken(login).await().atMost(awaitTimeout);
+  }
+
+  /**
+   * Verifies an access token locally.
+   *
+   * @param verifyDto Token to verify and roles it must have
+   * @return {@link SessionDto} Username, roles and expiry of the token
+   */
+  public SessionDto verify(TokenVerifyDto verifyDto) {
+    return tokenSvc.verify(verifyDto).await().atMost(awaitTimeout);
+  }
+
+}
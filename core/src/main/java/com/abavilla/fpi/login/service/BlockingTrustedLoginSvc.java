@@ -0,0 +1,60 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.service;
+
+import java.time.Duration;
+
+import com.abavilla.fpi.login.ext.dto.SessionDto;
+import com.abavilla.fpi.login.ext.dto.WebhookLoginDto;
+import io.quarkus.arc.properties.IfBuildProperty;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Imperative counterpart of {@link TrustedLoginSvc} for the virtual thread execution mode. Like
+ * {@link BlockingLoginSvc} it is a thin wrapper which parks the calling virtual thread until the
+ * reactive pipeline of {@link TrustedLoginSvc} completes.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+@IfBuildProperty(name = "fpi.login.execution-mode", stringValue = "virtual-threads")
+public class BlockingTrustedLoginSvc {
+
+  /**
+   * Longest time a caller waits for the pipeline to complete
+   */
+  @ConfigProperty(name = "fpi.login.virtual-threads.await-timeout")
+  Duration awaitTimeout;
+
+  @Inject
+  TrustedLoginSvc trustedLoginSvc;
+
+  /**
+   * Logs in a user from a trusted identity provider, registering the user on first contact.
+   *
+   * @param loginDto Login from the bot platform
+   * @return {@link SessionDto} Session information
+   */
+  public SessionDto authorizedLogin(WebhookLoginDto loginDto) {
+    return trustedLoginSvc.authorizedLogin(loginDto).await().atMost(awaitTimeout);
+  }
+
+}
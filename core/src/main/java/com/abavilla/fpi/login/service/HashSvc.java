@@ -0,0 +1,192 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.service;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.abavilla.fpi.fw.exceptions.FPISvcEx;
+import com.abavilla.fpi.login.util.LoginConst;
+import com.abavilla.fpi.login.util.LoginUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.UniEmitter;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestResponse;
+
+/**
+ * Service layer for hashing and verifying passwords off the event loop. BCrypt work is run on
+ * a fixed size pool with a bounded queue, requests beyond the queue depth are rejected right away
+ * with {@code 429 Too Many Requests} instead of piling up.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class HashSvc {
+
+  private static final String METRIC_PREFIX = "fpi.login.hash";
+
+  private static final String OP_HASH = "hash";
+
+  private static final String OP_VERIFY = "verify";
+
+  /**
+   * Number of threads doing BCrypt work, should not exceed the available cores
+   */
+  @ConfigProperty(name = "fpi.login.hash.pool-size")
+  int poolSize;
+
+  /**
+   * Maximum number of hashing requests waiting for a thread
+   */
+  @ConfigProperty(name = "fpi.login.hash.queue-depth")
+  int queueDepth;
+
+  @Inject
+  MeterRegistry registry;
+
+  private ThreadPoolExecutor executor;
+
+  private Timer queueWait;
+
+  private Counter rejected;
+
+  /**
+   * Hashing timers by operation and cost, built once instead of on every hash
+   */
+  private final Map<String, Timer> hashTimers = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  void init() {
+    var threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(queueDepth), task -> {
+        var thread = new Thread(task, "fpi-hash-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }, new ThreadPoolExecutor.AbortPolicy());
+    queueWait = Timer.builder(METRIC_PREFIX + ".queue.wait")
+      .description("Time spent by hashing requests waiting for a thread")
+      .register(registry);
+    rejected = Counter.builder(METRIC_PREFIX + ".rejected")
+      .description("Hashing requests rejected due to a full queue")
+      .register(registry);
+    registry.gauge(METRIC_PREFIX + ".queue.size", executor, pool -> pool.getQueue().size());
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Hashes password with BCrypt.
+   *
+   * @param password Unhashed password
+   * @return Hash password
+   */
+  public Uni<char[]> hashPassword(char[] password) {
+    return submit(OP_HASH, LoginUtil.BCRYPT_HASH_COST, () -> LoginUtil.hashPassword(password));
+  }
+
+  /**
+   * Checks if hash matches with password.
+   *
+   * @param password Password
+   * @param hash Hash
+   * @return {@code true} if a match otherwise {@code false}
+   */
+  public Uni<Boolean> verifyHash(char[] password, char[] hash) {
+    return submit(OP_VERIFY, LoginUtil.getCost(hash), () -> LoginUtil.verifyHash(password, hash));
+  }
+
+  /**
+   * Runs the hashing task on the pool, the result is emitted back on the caller's
+   * Vert.x context if there is one.
+   *
+   * @param op Operation name for metrics
+   * @param cost BCrypt cost factor for metrics
+   * @param task Hashing task
+   * @return Result of the task
+   * @param <T> Type of result
+   */
+  private <T> Uni<T> submit(String op, int cost, Supplier<T> task) {
+    return Uni.createFrom().emitter(emitter -> {
+      Context context = Vertx.currentContext();
+      long queuedAt = System.nanoTime();
+      try {
+        executor.execute(() -> {
+          long startedAt = System.nanoTime();
+          queueWait.record(startedAt - queuedAt, TimeUnit.NANOSECONDS);
+          try {
+            T result = task.get();
+            hashTimer(op, cost).record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+            complete(context, emitter, result);
+          } catch (Throwable ex) {
+            // anything escaping here would leave the caller waiting forever
+            fail(context, emitter, ex);
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        rejected.increment();
+        emitter.fail(new FPISvcEx(LoginConst.TOO_MANY_LOGIN_REQUESTS,
+          RestResponse.StatusCode.TOO_MANY_REQUESTS));
+      }
+    });
+  }
+
+  private Timer hashTimer(String op, int cost) {
+    return hashTimers.computeIfAbsent(op + ':' + cost, ignored -> Timer.builder(METRIC_PREFIX + ".time")
+      .description("Time spent computing BCrypt hashes")
+      .tag("op", op)
+      .tag("cost", String.valueOf(cost))
+      .register(registry));
+  }
+
+  private static <T> void complete(Context context, UniEmitter<? super T> emitter, T result) {
+    if (context == null) {
+      emitter.complete(result);
+    } else {
+      context.runOnContext(ignored -> emitter.complete(result));
+    }
+  }
+
+  private static void fail(Context context, UniEmitter<?> emitter, Throwable failure) {
+    if (context == null) {
+      emitter.fail(failure);
+    } else {
+      context.runOnContext(ignored -> emitter.fail(failure));
+    }
+  }
+
+}
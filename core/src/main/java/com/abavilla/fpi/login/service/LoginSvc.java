@@ -18,28 +18,35 @@
 
 package com.abavilla.fpi.login.service;
 
-import java.io.IOException;
-import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import com.abavilla.fpi.fw.service.AbsRepoSvc;
 import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.cache.CredentialCache;
+import com.abavilla.fpi.login.cache.SessionActivity;
 import com.abavilla.fpi.login.entity.Session;
 import com.abavilla.fpi.login.ext.dto.LoginDto;
 import com.abavilla.fpi.login.ext.dto.PasswordLoginDto;
 import com.abavilla.fpi.login.ext.dto.SessionDto;
 import com.abavilla.fpi.login.mapper.SessionMapper;
 import com.abavilla.fpi.login.repo.SessionRepo;
+import com.abavilla.fpi.login.rest.KeycloakTokenClient;
 import com.abavilla.fpi.login.util.LoginConst;
-import com.abavilla.fpi.login.util.LoginUtil;
-import com.mongodb.ErrorCategory;
-import com.mongodb.MongoWriteException;
+import com.abavilla.fpi.login.util.LoginMetrics;
+import com.abavilla.fpi.login.util.LoginMetrics.Stage;
+import com.abavilla.fpi.login.util.LoginMetrics.Trace;
+import com.abavilla.fpi.login.util.Resilience;
+import com.abavilla.fpi.login.util.SingleFlight;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.NotAuthorizedException;
+import org.apache.commons.lang3.StringUtils;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.keycloak.authorization.client.AuthzClient;
 import org.keycloak.authorization.client.util.HttpResponseException;
 import org.keycloak.representations.AccessTokenResponse;
 
@@ -51,6 +58,16 @@ import org.keycloak.representations.AccessTokenResponse;
 @ApplicationScoped
 public class LoginSvc extends AbsRepoSvc<LoginDto, Session, SessionRepo> {
 
+  /**
+   * Outcome tag of logins served from the credential cache
+   */
+  private static final String CACHED = "cached";
+
+  /**
+   * Largest fraction of a renewed token's lifetime its expiry can be brought forward by
+   */
+  static final double MAX_EXPIRY_JITTER = 0.25;
+
   @ConfigProperty(name = "session.grace-period")
   Long tokenGracePeriod;
 
@@ -58,7 +75,7 @@ public class LoginSvc extends AbsRepoSvc<LoginDto, Session, SessionRepo> {
    * Client used for authorizing with Keycloak server.
    */
   @Inject
-  AuthzClient authzClient;
+  KeycloakTokenClient tokenClient;
 
   /**
    * DTO to Entity mapper for {@link Session}
@@ -66,6 +83,41 @@ public class LoginSvc extends AbsRepoSvc<LoginDto, Session, SessionRepo> {
   @Inject
   SessionMapper mapper;
 
+  /**
+   * Service for hashing and verifying passwords off the event loop
+   */
+  @Inject
+  HashSvc hashSvc;
+
+  /**
+   * Cache of credentials already verified against a session
+   */
+  @Inject
+  CredentialCache credentialCache;
+
+  /**
+   * Recent logins, only their sessions are renewed ahead of expiry
+   */
+  @Inject
+  SessionActivity sessionActivity;
+
+  /**
+   * Latency and retry metrics of the login pipelines
+   */
+  @Inject
+  LoginMetrics metrics;
+
+  /**
+   * Bounds the retries of the login pipelines
+   */
+  @Inject
+  Resilience resilience;
+
+  /**
+   * Logins in flight, keyed by credentials
+   */
+  private final SingleFlight<CredentialCache.CredentialKey, Session> loginFlights = new SingleFlight<>();
+
   /**
    * Performs login, if existing session is detected, return currently established token.
    *
@@ -73,65 +125,180 @@ public class LoginSvc extends AbsRepoSvc<LoginDto, Session, SessionRepo> {
    * @return {@link SessionDto} Session information
    */
   public Uni<SessionDto> login(PasswordLoginDto login) {
-    Uni<Optional<Session>> byUsername = repo.findByUsername(login.getUsername());
-    return byUsername.chain(sessionOpt -> {
-      if (sessionOpt.isEmpty()) {
-        AccessTokenResponse auth = null;
-        try {
-          auth = authzClient.obtainAccessToken(login.getUsername(), login.getPassword());
-        } catch (HttpResponseException ex) {
-          return Uni.createFrom().failure(
-              new NotAuthorizedException(LoginConst.INVALID_USER_CREDENTIALS));
+    var trace = metrics.trace(LoginMetrics.Pipeline.LOGIN);
+    var credentials = credentialCache.key(login.getUsername(), login.getPassword());
+    var verified = credentialCache.get(credentials);
+    if (verified.isPresent()) {
+      sessionActivity.recordLogin(login.getUsername());
+      return trace.record(Uni.createFrom().item(mapper.mapToDto(verified.get())), dto -> CACHED);
+    }
+    // concurrent logins with the same credentials share one lookup, keycloak call and persist
+    return trace.record(loginFlights.run(credentials, () -> authenticate(login, trace))
+      .invoke(session -> {
+        credentialCache.put(credentials, session);
+        sessionActivity.recordLogin(login.getUsername());
+      })
+      .map(mapper::mapToDto));
+  }
+
+  /**
+   * Verifies the credentials against the existing session, or creates a new session if there is none.
+   *
+   * @param login Login credentials
+   * @param trace Metrics of the login
+   * @return Verified or newly created session
+   */
+  private Uni<Session> authenticate(PasswordLoginDto login, Trace trace) {
+    return resilience.retry(trace.retryable(() -> trace.stage(Stage.LOOKUP, () -> repo.findByUsername(login.getUsername()))
+      .chain(sessionOpt -> {
+        if (sessionOpt.isEmpty()) {
+          return obtainAccessToken(login, trace)
+            .chain(auth -> mapLoginToSession(new Session(), login, auth, trace))
+            .chain(session -> trace.stage(Stage.PERSIST, () -> repo.upsert(session)));
+        } else {
+          Session session = sessionOpt.get();
+          return trace.stage(Stage.VERIFY, () ->
+              hashSvc.verifyHash(login.getPassword().toCharArray(), session.getPassword()))
+            .chain(verified -> verified ? Uni.createFrom().item(session) :
+              Uni.createFrom().failure(new NotAuthorizedException(LoginConst.INVALID_USER_CREDENTIALS)));
         }
-        Session newSession = new Session();
-        mapLoginToSession(newSession, login, auth);
-        return repo.persist(newSession);
-      } else if (LoginUtil.verifyHash(login.getPassword().toCharArray(),
-          sessionOpt.get().getPassword())) {
-        return Uni.createFrom().item(sessionOpt.get());
-      } else {
-        return Uni.createFrom().failure(
-            new NotAuthorizedException(LoginConst.INVALID_USER_CREDENTIALS));
-      }
-    })
-    .onFailure(ex -> ex instanceof MongoWriteException wEx &&
-        wEx.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY))
-    .retry().withBackOff(
-      Duration.ofSeconds(3)).withJitter(0.2).indefinitely()
-    .onFailure(IOException.class).retry().withBackOff(
-      Duration.ofSeconds(3)).withJitter(0.2).atMost(5)
-    .map(mapper::mapToDto);
+      })), Resilience.DUPLICATE_KEY.or(Resilience.IO));
   }
 
   /**
-   * Force to retrieve a new access token from authentication server.
+   * Force to retrieve a new access token from authentication server. Uses the session's refresh
+   * token when the credentials match the session, falls back to the password grant if they don't
+   * or if keycloak rejected the refresh token. Credentials already verified against the session are
+   * matched through the credential cache without BCrypt.
    *
    * @param login Login credentials
    * @return {@link SessionDto} object
    */
   public Uni<SessionDto> refreshToken(PasswordLoginDto login) {
-    Uni<Optional<Session>> byUsername = repo.findByUsername(login.getUsername());
-    return byUsername.chain(sessionOpt -> {
-      AccessTokenResponse auth = null;
-
-      try {
-        auth = authzClient.obtainAccessToken(login.getUsername(), login.getPassword());
-      } catch (HttpResponseException ex) {
-        return Uni.createFrom().failure(
-            new NotAuthorizedException(LoginConst.INVALID_USER_CREDENTIALS));
-      }
-
-      Session session = sessionOpt.orElse(new Session());
-      mapLoginToSession(session, login, auth);
-      return repo.persistOrUpdate(session);
+    var trace = metrics.trace(LoginMetrics.Pipeline.REFRESH);
+    var cachedVerified = credentialCache.get(login.getUsername(), login.getPassword());
+    credentialCache.invalidate(login.getUsername());
+    return trace.record(resilience.retry(trace.retryable(() -> trace.stage(Stage.LOOKUP, () -> repo.findByUsername(login.getUsername()))
+      .chain(sessionOpt -> {
+        if (sessionOpt.isEmpty() || StringUtils.isBlank(sessionOpt.get().getRefreshToken())) {
+          return refreshWithPassword(login, sessionOpt, trace);
+        }
+        var session = sessionOpt.get();
+        return verifyPassword(login, session, cachedVerified, trace)
+          .chain(verified -> verified ?
+            refreshSession(session, 0, trace).onFailure(HttpResponseException.class)
+              .recoverWithUni(() -> refreshWithPassword(login, sessionOpt, trace)) :
+            refreshWithPassword(login, sessionOpt, trace));
+      }), Resilience.DUPLICATE_KEY.or(Resilience.IO))
+    .invoke(() -> {
+      credentialCache.invalidate(login.getUsername());
+      sessionActivity.recordLogin(login.getUsername());
     })
-    .onFailure(ex -> ex instanceof MongoWriteException wEx &&
-      wEx.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY))
-    .retry().withBackOff(
-      Duration.ofSeconds(3)).withJitter(0.2).indefinitely()
-    .onFailure(IOException.class).retry().withBackOff(
-      Duration.ofSeconds(3)).withJitter(0.2).atMost(5)
-    .map(mapper::mapToDto);
+    .map(mapper::mapToDto));
+  }
+
+  /**
+   * Verifies the password of a login against a session, skipping BCrypt if the credential cache
+   * had already verified the same password against the same password hash.
+   *
+   * @param login Login credentials
+   * @param session Session to verify against
+   * @param cachedVerified Session the credentials were verified against, from the credential cache
+   * @param trace Metrics of the login
+   * @return {@code true} if the password matches
+   */
+  private Uni<Boolean> verifyPassword(PasswordLoginDto login, Session session, Optional<Session> cachedVerified,
+                                      Trace trace) {
+    if (cachedVerified.isPresent() && Objects.equals(cachedVerified.get().getId(), session.getId())
+        && Arrays.equals(cachedVerified.get().getPassword(), session.getPassword())) {
+      return Uni.createFrom().item(Boolean.TRUE);
+    }
+    return trace.stage(Stage.VERIFY, () ->
+      hashSvc.verifyHash(login.getPassword().toCharArray(), session.getPassword()));
+  }
+
+  /**
+   * Renews the tokens of a session using its refresh token, only the token fields are written.
+   *
+   * @param session Session to renew
+   * @return Renewed session, fails with {@link HttpResponseException} if keycloak rejected the
+   * refresh token
+   */
+  public Uni<Session> refreshSession(Session session) {
+    return refreshSession(session, 0);
+  }
+
+  /**
+   * Renews the tokens of a session using its refresh token, only the token fields are written.
+   *
+   * @param session Session to renew
+   * @param expiryJitter Maximum fraction of the new token's lifetime to bring the session's expiry
+   *                     forward by, used to spread out the expiry of sessions renewed together.
+   *                     Capped at {@value #MAX_EXPIRY_JITTER} so the renewed session never expires
+   *                     right away
+   * @return Renewed session, fails with {@link HttpResponseException} if keycloak rejected the
+   * refresh token
+   */
+  public Uni<Session> refreshSession(Session session, double expiryJitter) {
+    var trace = metrics.trace(LoginMetrics.Pipeline.RENEWAL);
+    return trace.record(refreshSession(session, expiryJitter, trace));
+  }
+
+  private Uni<Session> refreshSession(Session session, double expiryJitter, Trace trace) {
+    return trace.stage(Stage.KEYCLOAK, () -> tokenClient.refreshAccessToken(session.getRefreshToken()))
+      .chain(auth -> {
+        mapTokenToSession(session, auth);
+        session.setRefreshTokenExpiry(session.getRefreshTokenExpiry().minusNanos(jitterNanos(auth, expiryJitter)));
+        session.setDateUpdated(DateUtil.now());
+        return trace.stage(Stage.PERSIST, () -> repo.updateTokens(session));
+      })
+      .invoke(() -> credentialCache.invalidate(session.getUsername()));
+  }
+
+  /**
+   * Picks a random time up to the given fraction of a token's usable lifetime.
+   *
+   * @param auth Authentication response
+   * @param expiryJitter Maximum fraction of the lifetime
+   * @return Jitter in nanoseconds
+   */
+  private long jitterNanos(AccessTokenResponse auth, double expiryJitter) {
+    long lifetimeSeconds = auth.getExpiresIn() - tokenGracePeriod;
+    double ratio = Math.min(expiryJitter, MAX_EXPIRY_JITTER);
+    if (lifetimeSeconds <= 0 || ratio <= 0) {
+      return 0L;
+    }
+    long maxJitter = (long) (TimeUnit.SECONDS.toNanos(lifetimeSeconds) * ratio);
+    return ThreadLocalRandom.current().nextLong(maxJitter + 1);
+  }
+
+  /**
+   * Retrieves a new token with the password grant and upserts the whole session, so a session
+   * created concurrently since the lookup is overwritten rather than failing the write.
+   *
+   * @param login Login credentials
+   * @param sessionOpt Existing session if any
+   * @param trace Metrics of the refresh
+   * @return Written session
+   */
+  private Uni<Session> refreshWithPassword(PasswordLoginDto login, Optional<Session> sessionOpt, Trace trace) {
+    return obtainAccessToken(login, trace)
+      .chain(auth -> mapLoginToSession(sessionOpt.orElse(new Session()), login, auth, trace))
+      .chain(session -> trace.stage(Stage.PERSIST, () -> repo.upsert(session)));
+  }
+
+  /**
+   * Obtains an access token from keycloak without blocking the calling thread.
+   *
+   * @param login Login credentials
+   * @param trace Metrics of the login
+   * @return Authentication response, fails with {@link NotAuthorizedException} if keycloak
+   * rejected the credentials
+   */
+  private Uni<AccessTokenResponse> obtainAccessToken(PasswordLoginDto login, Trace trace) {
+    return trace.stage(Stage.KEYCLOAK, () -> tokenClient.obtainAccessToken(login.getUsername(), login.getPassword()))
+      .onFailure(HttpResponseException.class).transform(ex ->
+        new NotAuthorizedException(LoginConst.INVALID_USER_CREDENTIALS));
   }
 
   /**
@@ -140,16 +307,32 @@ public class LoginSvc extends AbsRepoSvc<LoginDto, Session, SessionRepo> {
    * @param session Session to map
    * @param login Login credentials
    * @param auth Authentication response
+   * @param trace Metrics of the login
+   * @return Mapped session
+   */
+  private Uni<Session> mapLoginToSession(Session session, PasswordLoginDto login, AccessTokenResponse auth,
+                                         Trace trace) {
+    return trace.stage(Stage.HASH, () -> hashSvc.hashPassword(login.getPassword().toCharArray())).map(hash -> {
+      session.setUsername(login.getUsername());
+      session.setPassword(hash);
+      session.setDateCreated(DateUtil.now());
+      session.setDateUpdated(DateUtil.now());
+      session.setIpAddress(login.getRemoteAddress());
+      session.setUserAgent(login.getUserAgent());
+      mapTokenToSession(session, auth);
+      return session;
+    });
+  }
+
+  /**
+   * Copies the tokens and their expiry from an authentication response to a {@link Session}.
+   *
+   * @param session Session to map
+   * @param auth Authentication response
    */
-  private void mapLoginToSession(Session session, PasswordLoginDto login, AccessTokenResponse auth) {
-    session.setUsername(login.getUsername());
-    session.setPassword(LoginUtil.hashPassword(
-        login.getPassword().toCharArray()));
+  private void mapTokenToSession(Session session, AccessTokenResponse auth) {
     session.setAccessToken(auth.getToken());
     session.setRefreshToken(auth.getRefreshToken());
-    session.setDateCreated(DateUtil.now());
-    session.setIpAddress(login.getRemoteAddress());
-    session.setUserAgent(login.getUserAgent());
     session.setRefreshTokenExpiry(DateUtil.now()
         .plusSeconds(auth.getExpiresIn() - tokenGracePeriod));
   }
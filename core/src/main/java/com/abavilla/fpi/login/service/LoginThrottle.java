@@ -0,0 +1,194 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.service;
+
+import java.time.Duration;
+import java.util.Locale;
+
+import com.abavilla.fpi.fw.exceptions.FPISvcEx;
+import com.abavilla.fpi.login.util.LoginConst;
+import com.abavilla.fpi.login.util.StripedRateLimiter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestResponse;
+
+/**
+ * Throttles password logins before any hashing or keycloak call is made. Requests are rate limited
+ * per client address and per username, and usernames are locked out for exponentially longer
+ * periods after repeated failed logins. Checking a request is lock-free, only recording a failure
+ * takes a lock on the username's entry.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class LoginThrottle {
+
+  private static final String METRIC_NAME = "fpi.login.throttle.rejected";
+
+  /**
+   * Caps the lockout exponent so the shift can't overflow
+   */
+  private static final int MAX_LOCKOUT_EXPONENT = 20;
+
+  @ConfigProperty(name = "fpi.login.throttle.stripes")
+  int stripes;
+
+  @ConfigProperty(name = "fpi.login.throttle.address.interval")
+  Duration addressInterval;
+
+  @ConfigProperty(name = "fpi.login.throttle.address.burst")
+  int addressBurst;
+
+  @ConfigProperty(name = "fpi.login.throttle.username.interval")
+  Duration usernameInterval;
+
+  @ConfigProperty(name = "fpi.login.throttle.username.burst")
+  int usernameBurst;
+
+  /**
+   * Failed logins allowed before the username is locked out
+   */
+  @ConfigProperty(name = "fpi.login.throttle.lockout.threshold")
+  int lockoutThreshold;
+
+  /**
+   * Length of the first lockout, doubled with every further failure
+   */
+  @ConfigProperty(name = "fpi.login.throttle.lockout.base")
+  Duration lockoutBase;
+
+  /**
+   * Longest lockout, failures are also forgotten after this long without another failure
+   */
+  @ConfigProperty(name = "fpi.login.throttle.lockout.max")
+  Duration lockoutMax;
+
+  @ConfigProperty(name = "fpi.login.throttle.lockout.max-users")
+  long lockoutMaxUsers;
+
+  @Inject
+  MeterRegistry registry;
+
+  private StripedRateLimiter byAddress;
+
+  private StripedRateLimiter byUsername;
+
+  private Cache<String, Lockout> lockouts;
+
+  private Counter addressRejected;
+
+  private Counter usernameRejected;
+
+  private Counter lockoutRejected;
+
+  @PostConstruct
+  void init() {
+    byAddress = new StripedRateLimiter(stripes, addressInterval, addressBurst);
+    byUsername = new StripedRateLimiter(stripes, usernameInterval, usernameBurst);
+    lockouts = Caffeine.newBuilder()
+      .maximumSize(lockoutMaxUsers)
+      .expireAfterWrite(lockoutMax)
+      .build();
+    addressRejected = registry.counter(METRIC_NAME, "reason", "address");
+    usernameRejected = registry.counter(METRIC_NAME, "reason", "username");
+    lockoutRejected = registry.counter(METRIC_NAME, "reason", "lockout");
+  }
+
+  /**
+   * Checks if a login may proceed, taking a permit from the address and username buckets.
+   *
+   * @param remoteAddress Client address, skipped if unknown
+   * @param username Username, skipped if blank
+   * @throws FPISvcEx with status 429 if the login is throttled
+   */
+  public void check(String remoteAddress, String username) {
+    var user = normalize(username);
+    if (user != null) {
+      var lockout = lockouts.getIfPresent(user);
+      if (lockout != null && lockout.lockedUntil() - System.nanoTime() > 0) {
+        reject(lockoutRejected);
+      }
+    }
+    if (StringUtils.isNotBlank(remoteAddress) && !byAddress.tryAcquire(remoteAddress)) {
+      reject(addressRejected);
+    }
+    if (user != null && !byUsername.tryAcquire(user)) {
+      reject(usernameRejected);
+    }
+  }
+
+  /**
+   * Records a failed login, locks out the username once the threshold is reached.
+   *
+   * @param username Username
+   */
+  public void recordFailure(String username) {
+    var user = normalize(username);
+    if (user == null) {
+      return;
+    }
+    lockouts.asMap().compute(user, (key, previous) -> {
+      int failures = previous == null ? 1 : previous.failures() + 1;
+      long lockedUntil = 0;
+      if (failures >= lockoutThreshold) {
+        int exponent = Math.min(failures - lockoutThreshold, MAX_LOCKOUT_EXPONENT);
+        long lockout = Math.min(lockoutBase.toNanos() << exponent, lockoutMax.toNanos());
+        lockedUntil = System.nanoTime() + lockout;
+      }
+      return new Lockout(failures, lockedUntil);
+    });
+  }
+
+  /**
+   * Records a successful login, clearing the username's failures.
+   *
+   * @param username Username
+   */
+  public void recordSuccess(String username) {
+    var user = normalize(username);
+    if (user != null) {
+      lockouts.invalidate(user);
+    }
+  }
+
+  private static String normalize(String username) {
+    return StringUtils.isBlank(username) ? null : username.toLowerCase(Locale.ROOT);
+  }
+
+  private static void reject(Counter counter) {
+    counter.increment();
+    throw new FPISvcEx(LoginConst.TOO_MANY_LOGIN_REQUESTS, RestResponse.StatusCode.TOO_MANY_REQUESTS);
+  }
+
+  /**
+   * Failed logins of a username
+   *
+   * @param failures Consecutive failed logins
+   * @param lockedUntil {@link System#nanoTime()} until which the username is locked out
+   */
+  private record Lockout(int failures, long lockedUntil) {}
+
+}
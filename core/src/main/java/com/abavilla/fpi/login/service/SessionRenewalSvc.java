@@ -0,0 +1,202 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.cache.SessionActivity;
+import com.abavilla.fpi.login.entity.Session;
+import com.abavilla.fpi.login.repo.SessionRepo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+/**
+ * Service layer for renewing sessions before they expire, so that the next login of an active user
+ * is served from the existing session instead of a new keycloak login. Sessions of users who recently
+ * logged in on this node and expiring within the configured window are renewed, page by page and rate
+ * limited, with the refresh token grant. Idle sessions are left to expire. The new expiry is jittered
+ * by a fraction of the token lifetime so that sessions created together do not keep expiring together.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class SessionRenewalSvc {
+
+  private static final Logger LOG = Logger.getLogger(SessionRenewalSvc.class);
+
+  private static final String METRIC_PREFIX = "fpi.login.session-renewal";
+
+  /**
+   * Kill switch for the renewal job
+   */
+  @ConfigProperty(name = "fpi.login.session-renewal.enabled")
+  boolean enabled;
+
+  /**
+   * Sessions expiring within this window are renewed
+   */
+  @ConfigProperty(name = "fpi.login.session-renewal.window")
+  Duration window;
+
+  /**
+   * Number of sessions fetched per page
+   */
+  @ConfigProperty(name = "fpi.login.session-renewal.batch-size")
+  int batchSize;
+
+  /**
+   * Minimum time between two renewals, limits the load on keycloak
+   */
+  @ConfigProperty(name = "fpi.login.session-renewal.spacing")
+  Duration spacing;
+
+  /**
+   * Maximum fraction of the token lifetime a renewed session's expiry is brought forward by
+   */
+  @ConfigProperty(name = "fpi.login.session-renewal.jitter")
+  double jitter;
+
+  @Inject
+  SessionRepo sessionRepo;
+
+  @Inject
+  LoginSvc loginSvc;
+
+  @Inject
+  SessionActivity sessionActivity;
+
+  @Inject
+  MeterRegistry registry;
+
+  /**
+   * Sessions which failed to renew and their expiry, skipped until they expire
+   */
+  private final Map<ObjectId, LocalDateTime> failedSessions = new ConcurrentHashMap<>();
+
+  /**
+   * Sessions within the renewal window at the start of the last run
+   */
+  private final AtomicLong backlog = new AtomicLong();
+
+  private Counter renewed;
+
+  private Counter failed;
+
+  private Timer runTime;
+
+  @PostConstruct
+  void init() {
+    registry.gauge(METRIC_PREFIX + ".backlog", backlog);
+    renewed = Counter.builder(METRIC_PREFIX + ".renewed")
+      .description("Sessions renewed ahead of expiry")
+      .register(registry);
+    failed = Counter.builder(METRIC_PREFIX + ".failed")
+      .description("Sessions which could not be renewed")
+      .register(registry);
+    runTime = Timer.builder(METRIC_PREFIX + ".run")
+      .description("Duration of a renewal run")
+      .register(registry);
+  }
+
+  /**
+   * Renews the sessions of active users expiring within the window, soonest first. Sessions written
+   * within the last window e.g. just renewed are skipped, so tokens living shorter than the window
+   * are not renewed on every run.
+   *
+   * @return Completion of the run
+   */
+  @Scheduled(every = "{fpi.login.session-renewal.interval}",
+    concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+  Uni<Void> renewExpiring() {
+    if (!enabled) {
+      return Uni.createFrom().voidItem();
+    }
+    var now = DateUtil.now();
+    var horizon = now.plus(window);
+    var writtenBefore = now.minus(window);
+    failedSessions.values().removeIf(expiry -> expiry.isBefore(now));
+    var skipped = Set.copyOf(failedSessions.keySet());
+    var sample = Timer.start(registry);
+
+    return sessionRepo.countExpiring(now, horizon, writtenBefore, skipped)
+      .invoke(backlog::set)
+      .onItem().transformToMulti(count -> expiringPages(now, horizon, writtenBefore, skipped))
+      .onItem().<Session>disjoint()
+      .select().where(session -> sessionActivity.isActive(session.getUsername()))
+      .onItem().transformToUniAndConcatenate(session -> Uni.createFrom().voidItem()
+        .onItem().delayIt().by(spacing)
+        .chain(() -> renew(session)))
+      .collect().last()
+      .replaceWithVoid()
+      .onFailure().recoverWithUni(ex -> {
+        LOG.warn("Session renewal run failed", ex);
+        return Uni.createFrom().voidItem();
+      })
+      .eventually(() -> sample.stop(runTime));
+  }
+
+  /**
+   * Fetches the expiring sessions one page at a time, the next page is only fetched once the
+   * previous one was renewed.
+   */
+  private Multi<List<Session>> expiringPages(LocalDateTime now, LocalDateTime horizon,
+                                             LocalDateTime writtenBefore, Set<ObjectId> skipped) {
+    return Multi.createBy().repeating()
+      .uni(AtomicReference<Session>::new, last ->
+        sessionRepo.findExpiring(now, horizon, writtenBefore, skipped, last.get(), batchSize)
+          .invoke(page -> {
+            if (!page.isEmpty()) {
+              last.set(page.get(page.size() - 1));
+            }
+          }))
+      .whilst(page -> page.size() == batchSize);
+  }
+
+  private Uni<Void> renew(Session session) {
+    var expiry = session.getRefreshTokenExpiry();
+    return loginSvc.refreshSession(session, jitter)
+      .invoke(renewed::increment)
+      .replaceWithVoid()
+      .onFailure().recoverWithUni(ex -> {
+        LOG.debugf(ex, "Unable to renew session %s", session.getId());
+        failed.increment();
+        failedSessions.put(session.getId(), expiry);
+        return Uni.createFrom().voidItem();
+      });
+  }
+
+}
@@ -0,0 +1,133 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Set;
+
+import com.abavilla.fpi.fw.exceptions.FPISvcEx;
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.cache.JwksCache;
+import com.abavilla.fpi.login.cache.VerifiedTokenCache;
+import com.abavilla.fpi.login.ext.dto.SessionDto;
+import com.abavilla.fpi.login.ext.dto.TokenVerifyDto;
+import io.smallrye.mutiny.Uni;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestResponse;
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.representations.AccessToken;
+
+/**
+ * Service layer for verifying access tokens locally against the realm's public keys, so that
+ * downstream services don't need a round trip to keycloak on every protected call.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class TokenSvc {
+
+  private static final String INVALID_TOKEN = "Invalid or expired token";
+
+  private static final String MISSING_ROLES = "Token is missing required roles";
+
+  /**
+   * Realm url of the keycloak server, expected as the token issuer
+   */
+  @ConfigProperty(name = "quarkus.oidc.auth-server-url")
+  String authServerUrl;
+
+  @Inject
+  JwksCache jwksCache;
+
+  @Inject
+  VerifiedTokenCache verifiedTokens;
+
+  /**
+   * Verifies the token's signature, issuer, expiry and realm roles.
+   *
+   * @param verifyDto Token and required roles
+   * @return {@link SessionDto} with the token's username, roles and expiry, fails with
+   * {@link FPISvcEx} if the token is invalid or lacks a required role
+   */
+  public Uni<SessionDto> verify(TokenVerifyDto verifyDto) {
+    var token = verifyDto.getAccessToken();
+    if (StringUtils.isBlank(token)) {
+      return Uni.createFrom().failure(new FPISvcEx(INVALID_TOKEN, RestResponse.StatusCode.UNAUTHORIZED));
+    }
+    var cached = verifiedTokens.get(token);
+    Uni<AccessToken> verified = cached != null ? Uni.createFrom().item(cached) :
+      verifySignature(token).invoke(accessToken -> verifiedTokens.put(token, accessToken));
+    return verified.map(accessToken -> {
+      var roles = getRealmRoles(accessToken);
+      if (verifyDto.getRoles() != null && !roles.containsAll(verifyDto.getRoles())) {
+        throw new FPISvcEx(MISSING_ROLES, RestResponse.StatusCode.FORBIDDEN);
+      }
+      return mapTokenToDto(accessToken, roles);
+    });
+  }
+
+  private Uni<AccessToken> verifySignature(String token) {
+    TokenVerifier<AccessToken> verifier;
+    String keyId;
+    try {
+      verifier = TokenVerifier.create(token, AccessToken.class)
+        .withChecks(TokenVerifier.IS_ACTIVE,
+          new TokenVerifier.RealmUrlCheck(StringUtils.removeEnd(authServerUrl, "/")));
+      // the token is only parsed here, so malformed tokens fail before any key lookup
+      keyId = verifier.getHeader().getKeyId();
+    } catch (VerificationException | RuntimeException ex) {
+      return Uni.createFrom().failure(new FPISvcEx(INVALID_TOKEN, RestResponse.StatusCode.UNAUTHORIZED));
+    }
+    return Uni.createFrom().deferred(() -> jwksCache.get(keyId))
+      .map(publicKey -> {
+        if (publicKey == null) {
+          throw new FPISvcEx(INVALID_TOKEN, RestResponse.StatusCode.UNAUTHORIZED);
+        }
+        try {
+          return verifier.publicKey(publicKey).verify().getToken();
+        } catch (VerificationException ex) {
+          throw new FPISvcEx(INVALID_TOKEN, RestResponse.StatusCode.UNAUTHORIZED);
+        }
+      });
+  }
+
+  private static Set<String> getRealmRoles(AccessToken accessToken) {
+    var realmAccess = accessToken.getRealmAccess();
+    return realmAccess == null || realmAccess.getRoles() == null ? Set.of() : realmAccess.getRoles();
+  }
+
+  private static SessionDto mapTokenToDto(AccessToken accessToken, Set<String> roles) {
+    var session = new SessionDto();
+    session.setUsername(accessToken.getPreferredUsername());
+    session.setStatus(SessionDto.SessionStatus.ESTABLISHED);
+    session.setRoles(new ArrayList<>(roles));
+    if (accessToken.getExp() != null) {
+      session.setTokenExpiry(DateUtil.convertLdtToStr(
+        LocalDateTime.ofEpochSecond(accessToken.getExp(), 0, ZoneOffset.UTC)));
+    }
+    return session;
+  }
+
+}
@@ -18,14 +18,12 @@
 
 package com.abavilla.fpi.login.service;
 
-import java.io.IOException;
-import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Optional;
 
 import com.abavilla.fpi.fw.exceptions.FPISvcEx;
 import com.abavilla.fpi.fw.service.AbsRepoSvc;
 import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.cache.UserCache;
 import com.abavilla.fpi.login.entity.Session;
 import com.abavilla.fpi.login.entity.User;
 import com.abavilla.fpi.login.entity.UserStatus;
@@ -35,12 +33,16 @@ import com.abavilla.fpi.login.ext.dto.WebhookLoginDto;
 import com.abavilla.fpi.login.ext.entity.ServiceStatus;
 import com.abavilla.fpi.login.mapper.SessionMapper;
 import com.abavilla.fpi.login.mapper.UserMapper;
+import com.abavilla.fpi.login.repo.LastAccessBuffer;
 import com.abavilla.fpi.login.repo.SessionRepo;
 import com.abavilla.fpi.login.repo.UserRepo;
-import com.abavilla.fpi.login.util.LoginUtil;
+import com.abavilla.fpi.login.repo.UserRepo.Registration;
+import com.abavilla.fpi.login.rest.KeycloakTokenClient;
+import com.abavilla.fpi.login.util.LoginMetrics;
+import com.abavilla.fpi.login.util.LoginMetrics.Stage;
+import com.abavilla.fpi.login.util.LoginMetrics.Trace;
+import com.abavilla.fpi.login.util.Resilience;
 import com.abavilla.fpi.telco.ext.enums.BotSource;
-import com.mongodb.ErrorCategory;
-import com.mongodb.MongoWriteException;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
@@ -48,7 +50,6 @@ import lombok.SneakyThrows;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.resteasy.reactive.RestResponse;
 import org.keycloak.TokenVerifier;
-import org.keycloak.authorization.client.AuthzClient;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.AccessTokenResponse;
 
@@ -64,6 +65,12 @@ public class TrustedLoginSvc extends AbsRepoSvc<LoginDto, User, UserRepo> {
   @Inject
   SessionRepo sessionRepo;
 
+  /**
+   * Write-behind buffer for the user's last access
+   */
+  @Inject
+  LastAccessBuffer lastAccessBuffer;
+
   /**
    * DTO to Entity mapper for {@link Session}
    */
@@ -76,60 +83,98 @@ public class TrustedLoginSvc extends AbsRepoSvc<LoginDto, User, UserRepo> {
   @Inject
   UserMapper userMapper;
 
+  /**
+   * Client used for authorizing with Keycloak server.
+   */
   @Inject
-  AuthzClient authzClient;
+  KeycloakTokenClient tokenClient;
 
-  public Uni<SessionDto> authorizedLogin(WebhookLoginDto loginDto) {
-    Uni<Optional<User>> bySocialId;
+  /**
+   * Service for hashing and verifying passwords off the event loop
+   */
+  @Inject
+  HashSvc hashSvc;
 
-    switch (BotSource.fromValue(loginDto.getBotSource())) {
-      case TELEGRAM -> bySocialId = repo.findByTelegramId(loginDto.getUsername());
-      case VIBER -> bySocialId = repo.findByViberId(loginDto.getUsername());
-      case SMS -> bySocialId = repo.findByMobileNo(loginDto.getUsername());
-      default -> bySocialId = repo.findByMetaId(loginDto.getUsername());
-    }
+  /**
+   * Latency and retry metrics of the login pipelines
+   */
+  @Inject
+  LoginMetrics metrics;
+
+  /**
+   * Bounds the retries of the login pipelines
+   */
+  @Inject
+  Resilience resilience;
 
-    return bySocialId.chain(authorizedUser -> {
-      if (authorizedUser.isEmpty()) {
-        // register
-        var user = new User();
-        userMapper.mapLoginToUser(user, loginDto);
-        user.setStatus(UserStatus.PENDING);
-        user.setSvcStatus(ServiceStatus.OPT_OUT);
-        user.setDateCreated(DateUtil.now());
-        user.setDateUpdated(DateUtil.now());
-        user.setRegistrationDate(DateUtil.now());
-        user.setLastAccess(DateUtil.now());
-        return repo.persist(user).replaceWith(() ->
+  /**
+   * Cache of users served to {@code GET /fpi/user}
+   */
+  @Inject
+  UserCache userCache;
+
+  public Uni<SessionDto> authorizedLogin(WebhookLoginDto loginDto) {
+    var botSource = BotSource.fromValue(loginDto.getBotSource());
+    var trace = metrics.trace(LoginMetrics.Pipeline.TRUSTED).source(botSource);
+    // captured up front as the nested retry below is assembled off the request's context
+    var deadline = resilience.deadline();
+    // registers a first contact, a known user is only read
+    return trace.record(resilience.retry(trace.retryable(() -> trace.stage(Stage.REGISTER, () ->
+        register(loginDto)).chain(registration -> {
+      if (registration.created()) {
+        return Uni.createFrom().item(
           mapSessionEntityToDto(new SessionDto(), loginDto, SessionDto.SessionStatus.CREATED_USER));
+      }
+      // get registered user
+      User user = registration.user();
+      if (user.getStatus() == UserStatus.VERIFIED) {
+        // create a true session when it is mapped to keycloak (VERIFIED)
+        lastAccessBuffer.record(user.getId(), DateUtil.now());
+        return resilience.retry(trace.retryable(() -> trace.stage(Stage.LOOKUP, () ->
+            sessionRepo.findByUsername(user.getId().toHexString())).chain(sessionOpt ->
+              createSession(user, sessionOpt.orElse(new Session()), sessionOpt.isPresent(), trace))),
+            Resilience.IO, deadline) // retry keycloak exceptions
+          .map(savedSession ->
+            mapSessionEntityToDto(sessionMapper.mapToDto(savedSession), loginDto, SessionDto.SessionStatus.ESTABLISHED));
       } else {
-        // get registered user
-        User user = authorizedUser.get();
-        user.setLastAccess(DateUtil.now());
-        user.setDateUpdated(DateUtil.now());
-        if (user.getStatus() == UserStatus.VERIFIED) {
-          // create a true session when it is mapped to keycloak (VERIFIED)
-          return repo.update(user).chain(() ->
-            sessionRepo
-              .findByUsername(user.getId().toHexString()).chain(sessionOpt ->
-                createSession(user, sessionOpt.orElse(new Session()), sessionOpt.isPresent()))
-              .onFailure(IOException.class).retry().withBackOff( // retry keycloak exceptions
-                Duration.ofSeconds(3)).withJitter(0.2).atMost(5)
-              .map(savedSession ->
-                mapSessionEntityToDto(sessionMapper.mapToDto(savedSession), loginDto, SessionDto.SessionStatus.ESTABLISHED))
-          );
-        } else {
-          // empty session as no keycloak mapping yet
-          var emptySession = new SessionDto();
-          mapSessionEntityToDto(emptySession, loginDto, SessionDto.SessionStatus.PENDING_VERIFICATION);
-          return Uni.createFrom().item(emptySession);
-        }
+        // empty session as no keycloak mapping yet
+        var emptySession = new SessionDto();
+        mapSessionEntityToDto(emptySession, loginDto, SessionDto.SessionStatus.PENDING_VERIFICATION);
+        return Uni.createFrom().item(emptySession);
       }
-    })
-    .onFailure(ex -> ex instanceof MongoWriteException wEx &&
-      wEx.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY))
-    .retry().withBackOff(
-      Duration.ofSeconds(3)).withJitter(0.2).indefinitely();
+    })), Resilience.DUPLICATE_KEY, deadline), session -> session.getStatus().name());
+  }
+
+  /**
+   * Registers the user of a login and caches it as read or inserted.
+   *
+   * @param loginDto Login details
+   * @return The registered user and whether it was inserted
+   */
+  private Uni<Registration> register(WebhookLoginDto loginDto) {
+    long stamp = userCache.stamp();
+    return repo.register(UserMapper.identitySource(loginDto.getBotSource()), loginDto.getUsername(),
+        newUser(loginDto))
+      .invoke(registration -> userCache.put(registration.user(), stamp));
+  }
+
+  /**
+   * Creates the user registered on first contact, pending verification and opted out.
+   *
+   * @param loginDto Login of the first contact
+   * @return New user
+   */
+  private User newUser(WebhookLoginDto loginDto) {
+    var now = DateUtil.now();
+    var user = new User();
+    userMapper.mapLoginToUser(user, loginDto);
+    user.setStatus(UserStatus.PENDING);
+    user.setSvcStatus(ServiceStatus.OPT_OUT);
+    user.setDateCreated(now);
+    user.setDateUpdated(now);
+    user.setRegistrationDate(now);
+    user.setLastAccess(now);
+    return user;
   }
 
   private SessionDto mapSessionEntityToDto(SessionDto sessionDto, LoginDto user, SessionDto.SessionStatus sessionStatus) {
@@ -147,21 +192,27 @@ public class TrustedLoginSvc extends AbsRepoSvc<LoginDto, User, UserRepo> {
     return sessionDto;
   }
 
-  private Uni<Session> createSession(User user, Session session, boolean foundExistingSession) {
+  private Uni<Session> createSession(User user, Session session, boolean foundExistingSession, Trace trace) {
     if (!foundExistingSession) {
       // create a new session
-      var tokenResponse = authzClient.obtainAccessToken(
-        user.getId().toHexString(), trustedKey);
-      mapLoginToSession(user, session, tokenResponse);
-      return sessionRepo.persist(session);
+      return trace.stage(Stage.KEYCLOAK, () -> tokenClient.obtainAccessToken(user.getId().toHexString(), trustedKey))
+        .chain(tokenResponse -> trace.stage(Stage.HASH, () -> hashSvc.hashPassword(trustedKey.toCharArray()))
+          .map(hash -> {
+            mapLoginToSession(user, session, tokenResponse, hash);
+            return session;
+          }))
+        .chain(newSession -> trace.stage(Stage.PERSIST, () -> sessionRepo.upsert(newSession)));
     } else {
       // validate existing session
-      if (!LoginUtil.verifyHash(trustedKey.toCharArray(), session.getPassword())) {
-        throw new FPISvcEx("Incorrect login",
-            RestResponse.StatusCode.UNAUTHORIZED);
-      }
+      return trace.stage(Stage.VERIFY, () -> hashSvc.verifyHash(trustedKey.toCharArray(), session.getPassword()))
+        .map(verified -> {
+          if (!verified) {
+            throw new FPISvcEx("Incorrect login",
+                RestResponse.StatusCode.UNAUTHORIZED);
+          }
+          return session;
+        });
     }
-    return Uni.createFrom().item(session);
   }
 
   /**
@@ -170,17 +221,18 @@ public class TrustedLoginSvc extends AbsRepoSvc<LoginDto, User, UserRepo> {
    * @param user User login information
    * @param session Session to map
    * @param auth Authentication response
+   * @param passwordHash Hash of the trusted key
    */
   @SneakyThrows
-  private void mapLoginToSession(User user, Session session, AccessTokenResponse auth) {
+  private void mapLoginToSession(User user, Session session, AccessTokenResponse auth, char[] passwordHash) {
     var verifier = TokenVerifier.create(auth.getToken(), AccessToken.class);
     var kcRoles = verifier.getToken().getRealmAccess().getRoles();
     session.setUsername(user.getId().toHexString());
-    session.setPassword(LoginUtil.hashPassword(
-        trustedKey.toCharArray()));
+    session.setPassword(passwordHash);
     session.setAccessToken(auth.getToken());
     session.setRefreshToken(auth.getRefreshToken());
     session.setDateCreated(DateUtil.now());
+    session.setDateUpdated(DateUtil.now());
     session.setRefreshTokenExpiry(DateUtil.now()
         .plusSeconds(auth.getExpiresIn() - tokenGracePeriod));
     session.setKeycloakRoles(new ArrayList<>(kcRoles));
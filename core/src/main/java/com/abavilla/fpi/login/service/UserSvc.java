@@ -20,15 +20,35 @@
 
 package com.abavilla.fpi.login.service;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.abavilla.fpi.fw.exceptions.FPISvcEx;
 import com.abavilla.fpi.fw.service.AbsRepoSvc;
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.cache.UserCache;
 import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.login.entity.UserStatus;
+import com.abavilla.fpi.login.ext.dto.UserBatchDto;
 import com.abavilla.fpi.login.ext.dto.UserDto;
+import com.abavilla.fpi.login.ext.entity.ServiceStatus;
 import com.abavilla.fpi.login.mapper.UserMapper;
 import com.abavilla.fpi.login.repo.UserRepo;
+import com.abavilla.fpi.login.util.Resilience;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import com.mongodb.client.model.Filters;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.resteasy.reactive.RestResponse;
 
 /**
@@ -39,9 +59,27 @@ import org.jboss.resteasy.reactive.RestResponse;
 @ApplicationScoped
 public class UserSvc extends AbsRepoSvc<UserDto, User, UserRepo> {
 
+  /**
+   * Maximum number of keys accepted in a single batch lookup
+   */
+  @ConfigProperty(name = "fpi.login.user-batch.max-size")
+  int maxBatchSize;
+
+  /**
+   * Number of users fetched per round trip when exporting
+   */
+  @ConfigProperty(name = "fpi.login.user-export.batch-size")
+  int exportBatchSize;
+
   @Inject
   UserMapper userMapper;
 
+  /**
+   * Cache of users by id and platform identity
+   */
+  @Inject
+  UserCache userCache;
+
   /**
    * {@inheritDoc}
    */
@@ -59,31 +97,203 @@ public class UserSvc extends AbsRepoSvc<UserDto, User, UserRepo> {
   }
 
   /**
-   * Retrieves {@link User} given the user's {@code metaId}.
+   * Retrieves {@link User} given the user's {@code id}, from cache if present.
+   *
+   * @param id the user id
+   * @return {@link UserDto}
+   */
+  public Uni<UserDto> getById(String id) {
+    if (!ObjectId.isValid(id)) {
+      throw new FPISvcEx(String.format("User with id %s was not found", id),
+        RestResponse.StatusCode.NOT_FOUND);
+    }
+    var userId = new ObjectId(id);
+    var cached = userCache.get(userId);
+    if (cached != null) {
+      return Uni.createFrom().item(this.mapToDto(cached));
+    }
+    long stamp = userCache.stamp();
+    return readThrough(repo.findByObjectId(userId), stamp,
+      String.format("User with id %s was not found", id));
+  }
+
+  /**
+   * Retrieves {@link User} given the user's {@code metaId}, from cache if present.
    *
    * @param metaId the meta id
    * @return {@link UserDto}
    */
   public Uni<UserDto> getByMetaId(String metaId) {
-    return repo.findByMetaId(metaId).chain(user -> {
-      if (user.isPresent()) {
-        return Uni.createFrom().item(this.mapToDto(user.get()));
-      }
-      throw new FPISvcEx(String.format("User with metaId %s was not found", metaId),
-        RestResponse.StatusCode.NOT_FOUND);
-    });
+    return getByIdentity(BotSource.FB_MSGR, metaId,
+      String.format("User with metaId %s was not found", metaId));
   }
 
+  /**
+   * Retrieves {@link User} given the user's mobile number, from cache if present.
+   *
+   * @param mobileNo the mobile number
+   * @return {@link UserDto}
+   */
   public Uni<UserDto> getByMobile(String mobileNo) {
-    return repo.findByMobileNo(mobileNo).chain(user -> {
-      if (user.isPresent()) {
-        return Uni.createFrom().item(this.mapToDto(user.get()));
+    return getByIdentity(BotSource.SMS, mobileNo,
+      String.format("User with mobile number %s was not found", mobileNo));
+  }
+
+  private Uni<UserDto> getByIdentity(BotSource source, String externalId, String notFound) {
+    var cached = userCache.get(source, externalId);
+    if (cached != null) {
+      return Uni.createFrom().item(this.mapToDto(cached));
+    }
+    long stamp = userCache.stamp();
+    return readThrough(repo.findByIdentity(source, externalId), stamp, notFound);
+  }
+
+  /**
+   * Caches the user loaded unless it was invalidated while loading.
+   *
+   * @param lookup User lookup
+   * @param stamp Cache stamp taken before the lookup
+   * @param notFound Message of the error if there is no user
+   * @return {@link UserDto}
+   */
+  private Uni<UserDto> readThrough(Uni<Optional<User>> lookup, long stamp, String notFound) {
+    return lookup.map(user -> {
+      if (user.isEmpty()) {
+        throw new FPISvcEx(notFound, RestResponse.StatusCode.NOT_FOUND);
       }
-      throw new FPISvcEx(String.format("User with mobile number %s was not found", mobileNo),
-        RestResponse.StatusCode.NOT_FOUND);
+      userCache.put(user.get(), stamp);
+      return this.mapToDto(user.get());
     });
   }
 
+  /**
+   * Patches the non-null fields of a user with a single {@code $set}, and drops it from the cache once
+   * written, whether or not the write succeeded.
+   *
+   * @param id the user id
+   * @param dto Fields to patch
+   * @param dateUpdated If given, the patch fails with 412 unless the user's update date is still this
+   * @return Patched {@link UserDto}
+   */
+  public Uni<UserDto> patchById(String id, UserDto dto, LocalDateTime dateUpdated) {
+    if (!ObjectId.isValid(id)) {
+      throw new FPISvcEx(String.format("User with id %s was not found", id),
+        RestResponse.StatusCode.NOT_FOUND);
+    }
+    var userId = new ObjectId(id);
+    var patch = this.mapToEntity(dto);
+    patch.setDateUpdated(DateUtil.now());
+    return repo.patch(userId, patch, dateUpdated)
+      .onFailure(Resilience.DUPLICATE_KEY).transform(ex ->
+        new FPISvcEx("Platform id already belongs to another user", RestResponse.StatusCode.CONFLICT))
+      .chain(user -> user != null ? Uni.createFrom().item(user) : missingOrModified(userId, dateUpdated))
+      .map(this::mapToDto)
+      .eventually(() -> userCache.invalidate(userId));
+  }
+
+  /**
+   * Fails a patch which matched no user, with 412 if the user exists but was updated since the
+   * given date, 404 otherwise.
+   *
+   * @param id the user id
+   * @param dateUpdated Update date precondition of the patch, optional
+   * @return Failed {@link Uni}
+   */
+  private Uni<User> missingOrModified(ObjectId id, LocalDateTime dateUpdated) {
+    var notFound = new FPISvcEx(String.format("User with id %s was not found", id.toHexString()),
+      RestResponse.StatusCode.NOT_FOUND);
+    if (dateUpdated == null) {
+      return Uni.createFrom().failure(notFound);
+    }
+    return repo.findByObjectId(id).chain(user -> Uni.createFrom().failure(user.isPresent() ?
+      new FPISvcEx(String.format("User with id %s was updated since %s", id.toHexString(), dateUpdated),
+        RestResponse.StatusCode.PRECONDITION_FAILED) : notFound));
+  }
+
+  /**
+   * Retrieves the users matching any of the given keys with one {@code $in} query per key type,
+   * streamed as they are found. Users matching more than one key are emitted once.
+   *
+   * @param batch Keys of the users
+   * @return Stream of {@link UserDto}
+   */
+  public Multi<UserDto> getBatch(UserBatchDto batch) {
+    if (countKeys(batch) > maxBatchSize) {
+      throw new FPISvcEx(String.format("At most %d keys can be requested in a batch", maxBatchSize),
+        RestResponse.StatusCode.BAD_REQUEST);
+    }
+    var queries = new ArrayList<Multi<User>>();
+    addBatchQuery(queries, "_id", nonBlank(batch.getIds()).stream()
+      .filter(ObjectId::isValid).map(ObjectId::new).toList());
+    addIdentityQuery(queries, BotSource.FB_MSGR, nonBlank(batch.getMetaIds()));
+    addIdentityQuery(queries, BotSource.TELEGRAM, nonBlank(batch.getTelegramIds()));
+    addIdentityQuery(queries, BotSource.VIBER, nonBlank(batch.getViberIds()));
+    addIdentityQuery(queries, BotSource.SMS, nonBlank(batch.getMobiles()));
+
+    if (queries.isEmpty()) {
+      return Multi.createFrom().empty();
+    }
+    Set<ObjectId> emitted = ConcurrentHashMap.newKeySet();
+    return Multi.createBy().merging().streams(queries)
+      .select().where(user -> emitted.add(user.getId()))
+      .map(this::mapToDto);
+  }
+
+  /**
+   * Streams all users matching the filters in {@code _id} order with constant memory, exports can
+   * be resumed after a disconnect by passing the id of the last user received.
+   *
+   * @param status Registration status, optional
+   * @param svcStatus Service opt-in status, optional
+   * @param lastAccessFrom Inclusive start of the last access range, optional
+   * @param lastAccessTo Exclusive end of the last access range, optional
+   * @param afterId Only export users after this id, optional
+   * @return Stream of {@link UserDto}
+   */
+  public Multi<UserDto> export(UserStatus status, ServiceStatus svcStatus, LocalDateTime lastAccessFrom,
+                               LocalDateTime lastAccessTo, ObjectId afterId) {
+    var filters = new ArrayList<Bson>();
+    if (status != null) {
+      filters.add(Filters.eq("status", repo.toBsonValue(status)));
+    }
+    if (svcStatus != null) {
+      filters.add(Filters.eq("svcStatus", repo.toBsonValue(svcStatus)));
+    }
+    if (lastAccessFrom != null) {
+      filters.add(Filters.gte("lastAccess", lastAccessFrom));
+    }
+    if (lastAccessTo != null) {
+      filters.add(Filters.lt("lastAccess", lastAccessTo));
+    }
+    if (afterId != null) {
+      filters.add(Filters.gt("_id", afterId));
+    }
+    var filter = filters.isEmpty() ? Filters.empty() : Filters.and(filters);
+    return repo.streamInIdOrder(filter, exportBatchSize).map(this::mapToDto);
+  }
+
+  private void addBatchQuery(List<Multi<User>> queries, String field, List<?> values) {
+    if (!values.isEmpty()) {
+      queries.add(repo.streamByFieldIn(field, values));
+    }
+  }
+
+  private void addIdentityQuery(List<Multi<User>> queries, BotSource source, List<String> externalIds) {
+    if (!externalIds.isEmpty()) {
+      queries.add(repo.streamByIdentityIn(source, externalIds));
+    }
+  }
+
+  private static List<String> nonBlank(List<String> keys) {
+    return keys == null ? List.of() : keys.stream().filter(StringUtils::isNotBlank).distinct().toList();
+  }
+
+  private static int countKeys(UserBatchDto batch) {
+    return nonBlank(batch.getIds()).size() + nonBlank(batch.getMetaIds()).size() +
+      nonBlank(batch.getTelegramIds()).size() + nonBlank(batch.getViberIds()).size() +
+      nonBlank(batch.getMobiles()).size();
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -0,0 +1,139 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free circuit breaker guarding calls to a single dependency. Opens after a run of
+ * consecutive failures and rejects calls until the open duration elapses, then lets a single probe
+ * through, closing again if the probe succeeds or reopening if it fails. Outcomes of calls admitted
+ * before the breaker opened are ignored while it is open.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public class CircuitBreaker {
+
+  /**
+   * Value of {@link #openedAt} while the breaker is closed
+   */
+  private static final long CLOSED = Long.MIN_VALUE;
+
+  private final int failureThreshold;
+
+  private final long openDuration;
+
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /**
+   * Time the breaker last opened, {@link #CLOSED} while closed
+   */
+  private final AtomicLong openedAt = new AtomicLong(CLOSED);
+
+  /**
+   * Whether the half-open probe is in flight
+   */
+  private final AtomicBoolean probing = new AtomicBoolean();
+
+  /**
+   * Creates a closed breaker.
+   *
+   * @param failureThreshold Consecutive failures before the breaker opens
+   * @param openDuration Time the breaker rejects calls once opened
+   */
+  public CircuitBreaker(int failureThreshold, Duration openDuration) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openDuration = openDuration.toNanos();
+  }
+
+  /**
+   * Checks whether a call may go through, taking the probe slot if the breaker is half-open.
+   *
+   * @return {@code true} if the call may go through, {@code false} if it must be rejected
+   */
+  public boolean tryAcquire() {
+    long opened = openedAt.get();
+    if (opened == CLOSED) {
+      return true;
+    }
+    if (System.nanoTime() - opened < openDuration) {
+      return false;
+    }
+    return probing.compareAndSet(false, true);
+  }
+
+  /**
+   * Records a call which completed without a dependency failure.
+   */
+  public void onSuccess() {
+    if (openedAt.get() == CLOSED) {
+      if (failures.get() != 0) {
+        failures.set(0);
+      }
+    } else if (probing.get()) {
+      failures.set(0);
+      openedAt.set(CLOSED);
+      probing.set(false);
+    }
+  }
+
+  /**
+   * Records a call which failed because of the dependency.
+   */
+  public void onFailure() {
+    if (openedAt.get() == CLOSED) {
+      if (failures.incrementAndGet() >= failureThreshold) {
+        openedAt.compareAndSet(CLOSED, System.nanoTime());
+      }
+    } else if (probing.get()) {
+      openedAt.set(System.nanoTime());
+      probing.set(false);
+    }
+  }
+
+  /**
+   * Gives up the probe slot of a call which was cancelled before completing.
+   */
+  public void release() {
+    probing.set(false);
+  }
+
+  /**
+   * Current state of the breaker.
+   *
+   * @return State
+   */
+  public State state() {
+    long opened = openedAt.get();
+    if (opened == CLOSED) {
+      return State.CLOSED;
+    }
+    return probing.get() || System.nanoTime() - opened >= openDuration ? State.HALF_OPEN : State.OPEN;
+  }
+
+  /**
+   * States of the breaker, ordered by severity
+   */
+  public enum State {
+    CLOSED, HALF_OPEN, OPEN
+  }
+}
@@ -23,6 +23,7 @@ package com.abavilla.fpi.login.util;
  */
 public final class LoginConst {
   public static final String INVALID_USER_CREDENTIALS = "Invalid user credentials";
+  public static final String TOO_MANY_LOGIN_REQUESTS = "Too many login requests, please try again later";
 
   private LoginConst() {
     // constants class
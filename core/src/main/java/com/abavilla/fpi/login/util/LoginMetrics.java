@@ -0,0 +1,266 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.smallrye.mutiny.Uni;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Latency and retry metrics of the login pipelines. Each request creates a {@link Trace} which
+ * times the stages of the pipeline, counts its retries and records the total once it completes.
+ * Meters are looked up once per distinct set of tags and reused afterwards, so tracing a request
+ * costs a few {@link System#nanoTime()} calls and map lookups.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class LoginMetrics {
+
+  private static final String METRIC_PREFIX = "fpi.login";
+
+  /**
+   * Outcome tag of a stage or pipeline which completed normally
+   */
+  public static final String SUCCESS = "success";
+
+  /**
+   * Source tag of pipelines which are not tied to a bot platform
+   */
+  private static final String NO_SOURCE = "none";
+
+  /**
+   * Bucket boundaries of the retry histogram
+   */
+  private static final double[] RETRY_BUCKETS = {0, 1, 2, 3, 5, 10, 20};
+
+  @Inject
+  MeterRegistry registry;
+
+  private final Map<StageKey, Timer> stageTimers = new ConcurrentHashMap<>();
+
+  private final Map<PipelineKey, Timer> pipelineTimers = new ConcurrentHashMap<>();
+
+  private final Map<PipelineKey, DistributionSummary> retrySummaries = new ConcurrentHashMap<>();
+
+  /**
+   * Starts tracing a single run of a pipeline.
+   *
+   * @param pipeline Pipeline being run
+   * @return Trace of the run
+   */
+  public Trace trace(Pipeline pipeline) {
+    return new Trace(pipeline);
+  }
+
+  private Timer stageTimer(Pipeline pipeline, String source, Stage stage, String outcome) {
+    return stageTimers.computeIfAbsent(new StageKey(pipeline, source, stage, outcome), key ->
+      Timer.builder(METRIC_PREFIX + ".stage")
+        .description("Time spent in a stage of a login pipeline")
+        .tag("pipeline", key.pipeline().getTag())
+        .tag("source", key.source())
+        .tag("stage", key.stage().getTag())
+        .tag("outcome", key.outcome())
+        .register(registry));
+  }
+
+  private Timer pipelineTimer(Pipeline pipeline, String source, String outcome) {
+    return pipelineTimers.computeIfAbsent(new PipelineKey(pipeline, source, outcome), key ->
+      Timer.builder(METRIC_PREFIX + ".pipeline")
+        .description("Total time taken by a login pipeline")
+        .tag("pipeline", key.pipeline().getTag())
+        .tag("source", key.source())
+        .tag("outcome", key.outcome())
+        .publishPercentileHistogram()
+        .register(registry));
+  }
+
+  private DistributionSummary retrySummary(Pipeline pipeline, String source) {
+    return retrySummaries.computeIfAbsent(new PipelineKey(pipeline, source, null), key ->
+      DistributionSummary.builder(METRIC_PREFIX + ".retries")
+        .description("Retries made by a single run of a login pipeline")
+        .tag("pipeline", key.pipeline().getTag())
+        .tag("source", key.source())
+        .serviceLevelObjectives(RETRY_BUCKETS)
+        .register(registry));
+  }
+
+  private static String outcome(Throwable ex) {
+    return ex == null ? SUCCESS : ex.getClass().getSimpleName();
+  }
+
+  /**
+   * Login pipelines
+   */
+  public enum Pipeline {
+    LOGIN, REFRESH, TRUSTED, RENEWAL;
+
+    private final String tag = name().toLowerCase(Locale.ROOT);
+
+    public String getTag() {
+      return tag;
+    }
+  }
+
+  /**
+   * Stages of the login pipelines
+   */
+  public enum Stage {
+    /**
+     * Looking up the session or user in the database
+     */
+    LOOKUP,
+    /**
+     * Calls to the keycloak token endpoint
+     */
+    KEYCLOAK,
+    /**
+     * Hashing a password
+     */
+    HASH,
+    /**
+     * Verifying a password against its hash
+     */
+    VERIFY,
+    /**
+     * Writing the session or user to the database
+     */
+    PERSIST,
+    /**
+     * Registering the user of a trusted login, an upsert which only writes for a first contact
+     */
+    REGISTER;
+
+    private final String tag = name().toLowerCase(Locale.ROOT);
+
+    public String getTag() {
+      return tag;
+    }
+  }
+
+  private record StageKey(Pipeline pipeline, String source, Stage stage, String outcome) {}
+
+  private record PipelineKey(Pipeline pipeline, String source, String outcome) {}
+
+  /**
+   * Metrics of a single run of a pipeline.
+   */
+  public final class Trace {
+
+    private final Pipeline pipeline;
+
+    private final long start = System.nanoTime();
+
+    private final AtomicInteger retries = new AtomicInteger();
+
+    private volatile String source = NO_SOURCE;
+
+    private Trace(Pipeline pipeline) {
+      this.pipeline = pipeline;
+    }
+
+    /**
+     * Tags the metrics of this run with the bot platform the request came from.
+     *
+     * @param botSource Bot platform
+     * @return This trace
+     */
+    public Trace source(BotSource botSource) {
+      source = botSource.name();
+      return this;
+    }
+
+    /**
+     * Times a stage, each subscription is timed separately.
+     *
+     * @param stage Stage being timed
+     * @param call Supplies the stage
+     * @return Timed stage
+     * @param <T> Type of item emitted by the stage
+     */
+    public <T> Uni<T> stage(Stage stage, Supplier<Uni<T>> call) {
+      return Uni.createFrom().deferred(() -> {
+        long stageStart = System.nanoTime();
+        return call.get().onItemOrFailure().invoke((item, ex) ->
+          stageTimer(pipeline, source, stage, outcome(ex))
+            .record(System.nanoTime() - stageStart, TimeUnit.NANOSECONDS));
+      });
+    }
+
+    /**
+     * Counts every subscription after the first one as a retry, wrap the part of the pipeline
+     * that is resubscribed by a retry operator.
+     *
+     * @param call Supplies the part of the pipeline being retried
+     * @return Counted pipeline
+     * @param <T> Type of item emitted by the pipeline
+     */
+    public <T> Uni<T> retryable(Supplier<Uni<T>> call) {
+      var subscribed = new AtomicBoolean();
+      return Uni.createFrom().deferred(() -> {
+        if (subscribed.getAndSet(true)) {
+          retries.incrementAndGet();
+        }
+        return call.get();
+      });
+    }
+
+    /**
+     * Records the total time and retries of the run once the pipeline completes.
+     *
+     * @param pipelineUni The whole pipeline
+     * @return Recorded pipeline
+     * @param <T> Type of item emitted by the pipeline
+     */
+    public <T> Uni<T> record(Uni<T> pipelineUni) {
+      return record(pipelineUni, item -> SUCCESS);
+    }
+
+    /**
+     * Records the total time and retries of the run once the pipeline completes.
+     *
+     * @param pipelineUni The whole pipeline
+     * @param successOutcome Derives the outcome tag from the emitted item, must return a value
+     *                       from a small fixed set
+     * @return Recorded pipeline
+     * @param <T> Type of item emitted by the pipeline
+     */
+    public <T> Uni<T> record(Uni<T> pipelineUni, Function<T, String> successOutcome) {
+      return pipelineUni.onItemOrFailure().invoke((item, ex) -> {
+        var outcome = ex == null ? successOutcome.apply(item) : outcome(ex);
+        pipelineTimer(pipeline, source, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        retrySummary(pipeline, source).record(retries.get());
+      });
+    }
+  }
+
+}
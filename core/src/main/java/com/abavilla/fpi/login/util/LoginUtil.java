@@ -48,7 +48,12 @@ public final class LoginUtil {
    * Exponential cost (log2 factor) between {@link BCrypt#MIN_COST}
    * and {@link BCrypt#MAX_COST} e.g. 12 --&gt; 2^12 = 4,096 iterations
    */
-  private static final int BCRYPT_HASH_COST = BCrypt.MIN_COST;
+  public static final int BCRYPT_HASH_COST = BCrypt.MIN_COST;
+
+  /**
+   * Offset of the two digit cost factor in a modular crypt formatted hash e.g. {@code $2y$04$...}
+   */
+  private static final int HASH_COST_OFFSET = 4;
 
 
   /**
@@ -69,7 +74,18 @@ public final class LoginUtil {
    * @return Hash password
    */
   public static char[] hashPassword(char[] password) {
-    return bcrypt.hashToChar(BCRYPT_HASH_COST, password);
+    return hashPassword(password, BCRYPT_HASH_COST);
+  }
+
+  /**
+   * Hashes password with BCrypt using the given cost factor
+   *
+   * @param password Unhashed password
+   * @param cost Exponential cost (log2 factor)
+   * @return Hash password
+   */
+  public static char[] hashPassword(char[] password, int cost) {
+    return bcrypt.hashToChar(cost, password);
   }
 
   /**
@@ -82,4 +98,19 @@ public final class LoginUtil {
   public static boolean verifyHash(char[] password, char[] hash) {
     return verifier.verifyStrict(password, hash).verified;
   }
+
+  /**
+   * Reads the cost factor from a BCrypt hash.
+   *
+   * @param hash Hash
+   * @return Cost factor, or {@code -1} if the hash is malformed
+   */
+  public static int getCost(char[] hash) {
+    if (hash == null || hash.length < HASH_COST_OFFSET + 2) {
+      return -1;
+    }
+    int tens = Character.digit(hash[HASH_COST_OFFSET], 10);
+    int ones = Character.digit(hash[HASH_COST_OFFSET + 1], 10);
+    return tens < 0 || ones < 0 ? -1 : tens * 10 + ones;
+  }
 }
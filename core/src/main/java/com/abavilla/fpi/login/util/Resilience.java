@@ -0,0 +1,331 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.util;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.abavilla.fpi.fw.exceptions.FPISvcEx;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.smallrye.common.vertx.ContextLocals;
+import io.smallrye.common.vertx.VertxContext;
+import io.smallrye.mutiny.Uni;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestResponse;
+import org.keycloak.authorization.client.util.HttpResponseException;
+
+/**
+ * Shared resilience layer for calls to the service's dependencies. Calls to each dependency go
+ * through its own {@link CircuitBreaker}, and retries are bounded by an attempt limit, a global
+ * {@link RetryBudget} and the deadline of the request being served, so that retries stop once the
+ * caller has given up on the response.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class Resilience {
+
+  private static final String METRIC_PREFIX = "fpi.login";
+
+  /**
+   * Key of the request deadline in the Vert.x context locals
+   */
+  private static final String DEADLINE_KEY = "fpi.login.deadline";
+
+  private static final double BACKOFF_JITTER = 0.2;
+
+  /**
+   * Failures of a write which lost the race to insert the same document, retrying finds the
+   * document written by the winner
+   */
+  public static final Predicate<Throwable> DUPLICATE_KEY = Resilience::isDuplicateKey;
+
+  /**
+   * Failures of connections to keycloak
+   */
+  public static final Predicate<Throwable> IO = IOException.class::isInstance;
+
+  /**
+   * Deadline of calls made outside of a request, or of requests without a timeout header
+   */
+  @ConfigProperty(name = "fpi.login.resilience.default-deadline")
+  Duration defaultDeadline;
+
+  @ConfigProperty(name = "fpi.login.resilience.max-retries")
+  int maxRetries;
+
+  @ConfigProperty(name = "fpi.login.resilience.backoff")
+  Duration backoff;
+
+  @ConfigProperty(name = "fpi.login.resilience.max-backoff")
+  Duration maxBackoff;
+
+  @ConfigProperty(name = "fpi.login.resilience.budget.ratio")
+  double budgetRatio;
+
+  @ConfigProperty(name = "fpi.login.resilience.budget.min-per-second")
+  int budgetMinPerSecond;
+
+  @ConfigProperty(name = "fpi.login.resilience.budget.max-banked")
+  int budgetMaxBanked;
+
+  @ConfigProperty(name = "fpi.login.resilience.breaker.failure-threshold")
+  int failureThreshold;
+
+  @ConfigProperty(name = "fpi.login.resilience.breaker.open-duration")
+  Duration openDuration;
+
+  @Inject
+  MeterRegistry registry;
+
+  private final Map<Dependency, CircuitBreaker> breakers = new EnumMap<>(Dependency.class);
+
+  private final Map<Dependency, Counter> breakerRejections = new EnumMap<>(Dependency.class);
+
+  private RetryBudget budget;
+
+  private Counter budgetRejections;
+
+  private Counter deadlineRejections;
+
+  @PostConstruct
+  void init() {
+    for (var dependency : Dependency.values()) {
+      var breaker = new CircuitBreaker(failureThreshold, openDuration);
+      breakers.put(dependency, breaker);
+      Gauge.builder(METRIC_PREFIX + ".breaker.state", breaker, b -> b.state().ordinal())
+        .description("State of the circuit breaker, 0 closed, 1 half-open, 2 open")
+        .tag("dependency", dependency.getTag())
+        .register(registry);
+      breakerRejections.put(dependency, Counter.builder(METRIC_PREFIX + ".breaker.rejected")
+        .description("Calls rejected by an open circuit breaker")
+        .tag("dependency", dependency.getTag())
+        .register(registry));
+    }
+    budget = new RetryBudget(budgetRatio, budgetMinPerSecond, budgetMaxBanked);
+    Gauge.builder(METRIC_PREFIX + ".retry.budget", budget, RetryBudget::available)
+      .description("Retries banked in the retry budget")
+      .register(registry);
+    budgetRejections = retryRejections("budget");
+    deadlineRejections = retryRejections("deadline");
+  }
+
+  private Counter retryRejections(String reason) {
+    return Counter.builder(METRIC_PREFIX + ".retry.rejected")
+      .description("Failures not retried as retrying was not allowed")
+      .tag("reason", reason)
+      .register(registry);
+  }
+
+  /**
+   * Sets the deadline of the request being served on the current Vert.x context.
+   *
+   * @param timeout Time the caller waits for the response
+   */
+  public static void setRequestDeadline(Duration timeout) {
+    if (VertxContext.isOnDuplicatedContext()) {
+      ContextLocals.put(DEADLINE_KEY, Deadline.after(timeout));
+    }
+  }
+
+  /**
+   * Deadline of the request being served, or the default deadline if there is none.
+   *
+   * @return Deadline
+   */
+  public Deadline deadline() {
+    if (VertxContext.isOnDuplicatedContext()) {
+      return ContextLocals.<Deadline>get(DEADLINE_KEY)
+        .orElseGet(() -> Deadline.after(defaultDeadline));
+    }
+    return Deadline.after(defaultDeadline);
+  }
+
+  /**
+   * Runs a call to a dependency through its circuit breaker, failing fast with
+   * {@link RestResponse.StatusCode#SERVICE_UNAVAILABLE} while the breaker is open.
+   *
+   * @param dependency Dependency being called
+   * @param call Call to the dependency
+   * @return Guarded call
+   * @param <T> Type of item emitted by the call
+   */
+  public <T> Uni<T> guard(Dependency dependency, Uni<T> call) {
+    var breaker = breakers.get(dependency);
+    return Uni.createFrom().deferred(() -> {
+      if (!breaker.tryAcquire()) {
+        breakerRejections.get(dependency).increment();
+        return Uni.createFrom().failure(new FPISvcEx(String.format("%s is unavailable", dependency.getTag()),
+          RestResponse.StatusCode.SERVICE_UNAVAILABLE));
+      }
+      return call
+        .onItemOrFailure().invoke((item, ex) -> {
+          if (ex != null && dependency.isFailure(ex)) {
+            breaker.onFailure();
+          } else {
+            breaker.onSuccess();
+          }
+        })
+        .onCancellation().invoke(breaker::release);
+    });
+  }
+
+  /**
+   * Retries a call on the given failures within the deadline of the request being served.
+   *
+   * @param call Call to retry, resubscribed on each attempt
+   * @param retryOn Failures to retry
+   * @return Call with retries
+   * @param <T> Type of item emitted by the call
+   */
+  public <T> Uni<T> retry(Uni<T> call, Predicate<Throwable> retryOn) {
+    return retry(call, retryOn, deadline());
+  }
+
+  /**
+   * Retries a call on the given failures with exponential backoff, up to the configured number of
+   * attempts and as long as the retry budget allows. Retries stop once the next attempt can no
+   * longer start before the deadline, and the call fails with
+   * {@link RestResponse.StatusCode#GATEWAY_TIMEOUT} if it is still running when the deadline passes.
+   *
+   * @param call Call to retry, resubscribed on each attempt
+   * @param retryOn Failures to retry
+   * @param deadline Time by which the call must complete
+   * @return Call with retries
+   * @param <T> Type of item emitted by the call
+   */
+  public <T> Uni<T> retry(Uni<T> call, Predicate<Throwable> retryOn, Deadline deadline) {
+    var remaining = deadline.remaining();
+    if (remaining.isNegative() || remaining.isZero()) {
+      return Uni.createFrom().failure(deadlineExceeded());
+    }
+    return call
+      .invoke(budget::deposit)
+      .onFailure(ex -> retryOn.test(ex) && allowRetry(deadline))
+      .retry().withBackOff(backoff, maxBackoff).withJitter(BACKOFF_JITTER).atMost(maxRetries)
+      .ifNoItem().after(remaining).failWith(Resilience::deadlineExceeded);
+  }
+
+  private boolean allowRetry(Deadline deadline) {
+    if (!deadline.hasRemaining(backoff)) {
+      deadlineRejections.increment();
+      return false;
+    }
+    if (!budget.tryWithdraw()) {
+      budgetRejections.increment();
+      return false;
+    }
+    return true;
+  }
+
+  private static FPISvcEx deadlineExceeded() {
+    return new FPISvcEx("Request deadline exceeded", RestResponse.StatusCode.GATEWAY_TIMEOUT);
+  }
+
+  private static boolean isDuplicateKey(Throwable ex) {
+    return ex instanceof MongoWriteException wEx &&
+      wEx.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY);
+  }
+
+  /**
+   * Dependencies guarded by a circuit breaker
+   */
+  public enum Dependency {
+    /**
+     * The MongoDB database, failures are driver errors other than duplicate keys
+     */
+    MONGO(ex -> ex instanceof MongoException && !isDuplicateKey(ex)),
+    /**
+     * The keycloak server, failures are anything but a 4xx response as those mean keycloak is up
+     * and rejected the request
+     */
+    KEYCLOAK(ex -> !(ex instanceof HttpResponseException httpEx) || httpEx.getStatusCode() >= 500);
+
+    private final String tag = name().toLowerCase(Locale.ROOT);
+
+    private final Predicate<Throwable> failure;
+
+    Dependency(Predicate<Throwable> failure) {
+      this.failure = failure;
+    }
+
+    public String getTag() {
+      return tag;
+    }
+
+    /**
+     * Checks if a failure is caused by the dependency being unhealthy.
+     *
+     * @param ex Failure
+     * @return {@code true} if the failure counts towards opening the breaker
+     */
+    public boolean isFailure(Throwable ex) {
+      return failure.test(ex);
+    }
+  }
+
+  /**
+   * Point in time by which a call must complete
+   *
+   * @param nanos Deadline in {@link System#nanoTime()} terms
+   */
+  public record Deadline(long nanos) {
+
+    /**
+     * Creates a deadline the given time from now.
+     *
+     * @param timeout Time from now
+     * @return Deadline
+     */
+    public static Deadline after(Duration timeout) {
+      return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * Time left until the deadline, negative once passed.
+     *
+     * @return Remaining time
+     */
+    public Duration remaining() {
+      return Duration.ofNanos(nanos - System.nanoTime());
+    }
+
+    /**
+     * Checks if at least the given time is left until the deadline.
+     *
+     * @param time Time needed
+     * @return {@code true} if there is enough time left
+     */
+    public boolean hasRemaining(Duration time) {
+      return nanos - System.nanoTime() > time.toNanos();
+    }
+  }
+}
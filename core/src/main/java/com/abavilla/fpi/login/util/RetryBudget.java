@@ -0,0 +1,107 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries to a ratio of successful calls so that retries cannot multiply the load on a
+ * dependency which is already failing. Every success banks a fraction of a retry, up to a cap, and
+ * every retry withdraws a whole one. A minimum number of retries per second is always allowed so
+ * that occasional failures are retried even while traffic is low.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public class RetryBudget {
+
+  /**
+   * Units of the balance making up a single retry
+   */
+  private static final long SCALE = 1000;
+
+  private final long depositPerSuccess;
+
+  private final long maxBalance;
+
+  private final int minPerSecond;
+
+  private final AtomicLong balance = new AtomicLong();
+
+  /**
+   * Second in which {@link #floorUsed} retries were taken from the minimum allowance
+   */
+  private final AtomicLong floorSecond = new AtomicLong();
+
+  private final AtomicInteger floorUsed = new AtomicInteger();
+
+  /**
+   * Creates an empty budget.
+   *
+   * @param ratio Retries allowed per successful call
+   * @param minPerSecond Retries allowed every second regardless of the ratio
+   * @param maxBanked Most retries that can be banked during quiet periods
+   */
+  public RetryBudget(double ratio, int minPerSecond, int maxBanked) {
+    this.depositPerSuccess = Math.round(ratio * SCALE);
+    this.maxBalance = Math.max(1, maxBanked) * SCALE;
+    this.minPerSecond = minPerSecond;
+  }
+
+  /**
+   * Banks a fraction of a retry for a successful call.
+   */
+  public void deposit() {
+    // skip the write once full, so steady successes don't contend on the balance
+    if (balance.get() < maxBalance) {
+      balance.updateAndGet(current -> Math.min(maxBalance, current + depositPerSuccess));
+    }
+  }
+
+  /**
+   * Takes a retry from the budget if one is available.
+   *
+   * @return {@code true} if the retry may go ahead
+   */
+  public boolean tryWithdraw() {
+    long current;
+    while ((current = balance.get()) >= SCALE) {
+      if (balance.compareAndSet(current, current - SCALE)) {
+        return true;
+      }
+    }
+    long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    long last = floorSecond.get();
+    if (last != second && floorSecond.compareAndSet(last, second)) {
+      // a retry racing the reset may be counted against the previous second, which is harmless
+      floorUsed.set(0);
+    }
+    return floorUsed.incrementAndGet() <= minPerSecond;
+  }
+
+  /**
+   * Whole retries currently banked.
+   *
+   * @return Banked retries
+   */
+  public double available() {
+    return (double) balance.get() / SCALE;
+  }
+}
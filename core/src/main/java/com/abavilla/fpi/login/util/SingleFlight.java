@@ -0,0 +1,72 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import io.smallrye.mutiny.Uni;
+
+/**
+ * Coalesces concurrent calls sharing the same key into a single execution. The first caller
+ * runs the call and every caller arriving before it completes subscribes to the same result,
+ * once completed the next caller runs the call again.
+ *
+ * @param <K> Type of key
+ * @param <V> Type of result
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public class SingleFlight<K, V> {
+
+  /**
+   * Calls currently in flight
+   */
+  private final Map<K, Uni<V>> inflight = new ConcurrentHashMap<>();
+
+  /**
+   * Runs the call, or joins the call already in flight for the same key.
+   *
+   * @param key Key identifying the call
+   * @param call Call to run
+   * @return Shared result of the call
+   */
+  public Uni<V> run(K key, Supplier<Uni<V>> call) {
+    return Uni.createFrom().deferred(() -> inflight.computeIfAbsent(key, k -> {
+      var self = new AtomicReference<Uni<V>>();
+      Uni<V> flight = Uni.createFrom().deferred(call)
+        .eventually(() -> inflight.remove(k, self.get()))
+        .memoize().indefinitely();
+      self.set(flight);
+      return flight;
+    }));
+  }
+
+  /**
+   * Number of calls currently in flight.
+   *
+   * @return the count
+   */
+  public int size() {
+    return inflight.size();
+  }
+
+}
@@ -0,0 +1,124 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+package com.abavilla.fpi.login.util;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free rate limiter allowing a sustained rate with bursts per key, implemented with the
+ * generic cell rate algorithm: each key maps to a stripe holding the theoretical arrival time of
+ * the next request, which is advanced with a single compare-and-set per request. Keys sharing a
+ * stripe share a budget, so size the stripes well above the number of keys active at once. Stripes
+ * are padded to a cache line each to avoid false sharing between threads. Text keys e.g. usernames
+ * are chosen by clients, so they are hashed with a random per-limiter seed rather than
+ * {@link String#hashCode()}, whose collisions are trivial to generate and would let a client drain
+ * the stripe of any other key.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public class StripedRateLimiter {
+
+  /**
+   * Longs per stripe, one cache line
+   */
+  private static final int PADDING = 8;
+
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final AtomicLongArray arrivals;
+
+  private final int mask;
+
+  private final long interval;
+
+  private final long tolerance;
+
+  /**
+   * Time origin, keeps the relative clock positive
+   */
+  private final long origin = System.nanoTime();
+
+  /**
+   * Seed of the key hash, unknown to clients
+   */
+  private final long seed = new SecureRandom().nextLong();
+
+  /**
+   * Creates a limiter.
+   *
+   * @param stripes Number of stripes, rounded up to a power of two
+   * @param interval Time between requests at the sustained rate
+   * @param burst Number of requests allowed at once before the sustained rate applies
+   */
+  public StripedRateLimiter(int stripes, Duration interval, int burst) {
+    int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+    this.arrivals = new AtomicLongArray(size * PADDING);
+    this.mask = size - 1;
+    this.interval = interval.toNanos();
+    this.tolerance = this.interval * Math.max(1, burst);
+  }
+
+  /**
+   * Takes a permit for the key if available.
+   *
+   * @param key Key to limit
+   * @return {@code true} if the request is allowed, {@code false} if it is over the rate
+   */
+  public boolean tryAcquire(Object key) {
+    return tryAcquire(key, System.nanoTime() - origin);
+  }
+
+  /**
+   * Takes a permit for the key if available at the given time.
+   *
+   * @param key Key to limit
+   * @param now Nanoseconds since this limiter was created
+   * @return {@code true} if the request is allowed, {@code false} if it is over the rate
+   */
+  boolean tryAcquire(Object key, long now) {
+    int index = stripe(key) * PADDING;
+    while (true) {
+      long arrival = arrivals.get(index);
+      long next = Math.max(arrival, now) + interval;
+      if (next - now > tolerance) {
+        return false;
+      }
+      if (arrivals.compareAndSet(index, arrival, next)) {
+        return true;
+      }
+    }
+  }
+
+  private int stripe(Object key) {
+    long h = seed;
+    if (key instanceof CharSequence text) {
+      for (int i = 0; i < text.length(); i++) {
+        h = (h ^ text.charAt(i)) * MULTIPLIER;
+        h ^= h >>> 29;
+      }
+    } else {
+      h = (h ^ key.hashCode()) * MULTIPLIER;
+    }
+    h = (h ^ (h >>> 32)) * MULTIPLIER;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * *****************************************************************************
+ *  * FPI Application - Abavilla                                                 *
+ *  * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *  *                                                                            *
+ *  * This program is free software: you can redistribute it and/or modify       *
+ *  * it under the terms of the GNU General Public License as published by       *
+ *  * the Free Software Foundation, either version 3 of the License, or          *
+ *  * (at your option) any later version.                                        *
+ *  *                                                                            *
+ *  * This program is distributed in the hope that it will be useful,            *
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ *  * GNU General Public License for more details.                               *
+ *  *                                                                            *
+ *  * You should have received a copy of the GNU General Public License          *
+ *  * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ *  *****************************************************************************
+ */
+
+package com.abavilla.fpi.login.cache;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.entity.Session;
+import com.abavilla.fpi.login.entity.User;
+import com.abavilla.fpi.login.entity.UserStatus;
+import com.abavilla.fpi.login.repo.SessionRepo;
+import com.abavilla.fpi.login.repo.UserRepo;
+import com.abavilla.fpi.telco.ext.enums.BotSource;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that {@link CacheSyncListener} drops or refreshes cached entries written by other nodes,
+ * against the dev services MongoDB replica set. Writes of other nodes are made straight to the
+ * collections so that they bypass the caches of this node.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@QuarkusTest
+class CacheSyncListenerTest {
+
+  private static final String PASSWORD = "password";
+
+  private static final Duration AWAIT = Duration.ofSeconds(30);
+
+  private static final Duration POLL = Duration.ofMillis(200);
+
+  @Inject
+  SessionRepo sessionRepo;
+
+  @Inject
+  UserRepo userRepo;
+
+  @Inject
+  SessionCache sessionCache;
+
+  @Inject
+  CredentialCache credentialCache;
+
+  @Inject
+  UserCache userCache;
+
+  /**
+   * Waits for the change streams opened at startup, changes made before they are open are missed.
+   */
+  @BeforeEach
+  void awaitChangeStream() {
+    var probe = write(newSession());
+    await().atMost(AWAIT).pollInterval(POLL).until(() -> {
+      if (sessionCache.get(probe.getUsername()) == null) {
+        return true;
+      }
+      changeElsewhere(probe);
+      return false;
+    });
+  }
+
+  @Test
+  void sessionDeletedElsewhereIsEvicted() {
+    var session = write(newSession());
+    credentialCache.put(session.getUsername(), PASSWORD, session);
+
+    // deletes only carry the id of the session
+    sessionRepo.mongoCollection().deleteOne(Filters.eq("_id", session.getId())).await().atMost(AWAIT);
+
+    awaitEvicted(session);
+  }
+
+  @Test
+  void sessionUpdatedElsewhereIsEvicted() {
+    var session = write(newSession());
+    credentialCache.put(session.getUsername(), PASSWORD, session);
+
+    changeElsewhere(session);
+
+    awaitEvicted(session);
+  }
+
+  @Test
+  void echoOfOwnWriteKeepsCachedSession() {
+    var session = newSession();
+    write(session);
+    session.setAccessToken("renewed");
+    var written = write(session);
+    credentialCache.put(written.getUsername(), PASSWORD, written);
+
+    awaitEchoes();
+
+    assertCached(written);
+  }
+
+  @Test
+  void echoOfTokenRenewalKeepsCachedSession() {
+    var session = write(newSession());
+    session.setAccessToken("renewed");
+    session.setRefreshToken("renewed");
+    // dates held in memory are finer than the milliseconds stored in BSON
+    session.setRefreshTokenExpiry(DateUtil.now().plusHours(1).withNano(123_456_789));
+    session.setDateUpdated(DateUtil.now().withNano(123_456_789));
+    var renewed = sessionRepo.updateTokens(session).await().atMost(AWAIT);
+    credentialCache.put(renewed.getUsername(), PASSWORD, renewed);
+
+    awaitEchoes();
+
+    assertCached(renewed);
+  }
+
+  @Test
+  void userChangedElsewhereIsRefreshed() {
+    var user = cacheNewUser();
+
+    userRepo.mongoCollection().updateOne(Filters.eq("_id", user.getId()),
+      Updates.set("name.firstName", "Changed")).await().atMost(AWAIT);
+
+    await().atMost(AWAIT).pollInterval(POLL).until(() -> {
+      var cached = userCache.get(user.getId());
+      return cached != null && cached.getName() != null && "Changed".equals(cached.getName().getFirstName());
+    });
+  }
+
+  @Test
+  void userDeletedElsewhereIsEvicted() {
+    var user = cacheNewUser();
+
+    userRepo.mongoCollection().deleteOne(Filters.eq("_id", user.getId())).await().atMost(AWAIT);
+
+    await().atMost(AWAIT).pollInterval(POLL).until(() -> userCache.get(user.getId()) == null);
+  }
+
+  private User cacheNewUser() {
+    var user = new User();
+    user.putIdentity(BotSource.TELEGRAM, "telegram-" + UUID.randomUUID());
+    user.setStatus(UserStatus.VERIFIED);
+    user.setDateCreated(DateUtil.now());
+    user.setDateUpdated(DateUtil.now());
+    var persisted = userRepo.persist(user).await().atMost(AWAIT);
+    userCache.put(persisted, userCache.stamp());
+    return persisted;
+  }
+
+  private Session write(Session session) {
+    return sessionRepo.upsert(session).await().atMost(AWAIT);
+  }
+
+  /**
+   * Changes the access token of a session the way another node would.
+   *
+   * @param session Session to change
+   */
+  private void changeElsewhere(Session session) {
+    sessionRepo.mongoCollection().updateOne(Filters.eq("_id", session.getId()),
+      Updates.set("accessToken", UUID.randomUUID().toString())).await().atMost(AWAIT);
+  }
+
+  /**
+   * Waits until the change events of the writes made so far were processed, changes are delivered
+   * in order so once a marker written afterwards is evicted the earlier events were processed.
+   */
+  private void awaitEchoes() {
+    var marker = write(newSession());
+    changeElsewhere(marker);
+    await().atMost(AWAIT).pollInterval(POLL).until(() -> sessionCache.get(marker.getUsername()) == null);
+  }
+
+  private void assertCached(Session session) {
+    var cached = sessionCache.get(session.getUsername());
+    assertNotNull(cached);
+    assertEquals(Optional.of(session), cached);
+    assertEquals(Optional.of(session), credentialCache.get(session.getUsername(), PASSWORD));
+  }
+
+  private void awaitEvicted(Session session) {
+    await().atMost(AWAIT).pollInterval(POLL).until(() -> sessionCache.get(session.getUsername()) == null
+      && credentialCache.get(session.getUsername(), PASSWORD).isEmpty());
+  }
+
+  private static Session newSession() {
+    var session = new Session();
+    session.setUsername("user-" + UUID.randomUUID());
+    session.setPassword("hash".toCharArray());
+    session.setAccessToken("access");
+    session.setRefreshToken("refresh");
+    session.setRefreshTokenExpiry(DateUtil.now().plusHours(1));
+    session.setDateCreated(DateUtil.now());
+    session.setDateUpdated(DateUtil.now());
+    return session;
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * *****************************************************************************
+ *  * FPI Application - Abavilla                                                 *
+ *  * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *  *                                                                            *
+ *  * This program is free software: you can redistribute it and/or modify       *
+ *  * it under the terms of the GNU General Public License as published by       *
+ *  * the Free Software Foundation, either version 3 of the License, or          *
+ *  * (at your option) any later version.                                        *
+ *  *                                                                            *
+ *  * This program is distributed in the hope that it will be useful,            *
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ *  * GNU General Public License for more details.                               *
+ *  *                                                                            *
+ *  * You should have received a copy of the GNU General Public License          *
+ *  * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ *  *****************************************************************************
+ */
+
+package com.abavilla.fpi.login.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.entity.Session;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the expiring session queries of {@link SessionRepo} used by the session renewal,
+ * against the dev services MongoDB.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@QuarkusTest
+class SessionRepoTest {
+
+  private static final Duration AWAIT = Duration.ofSeconds(30);
+
+  @Inject
+  SessionRepo sessionRepo;
+
+  @Test
+  void expiringSessionsIncludeSessionsWithoutUpdateDate() {
+    var now = DateUtil.now();
+    var expiry = now.plusMinutes(1);
+    var legacy = insert(new Document("refreshTokenExpiry", expiry));
+    var stale = insert(new Document("refreshTokenExpiry", expiry)
+      .append("dateUpdated", now.minusHours(1)));
+    var fresh = insert(new Document("refreshTokenExpiry", expiry).append("dateUpdated", now));
+    var ids = Set.of(legacy, stale, fresh);
+
+    var found = sessionRepo.findExpiring(now, now.plusMinutes(2), now.minusMinutes(1), List.of(),
+        null, Integer.MAX_VALUE)
+      .await().atMost(AWAIT).stream()
+      .map(Session::getId)
+      .filter(ids::contains)
+      .toList();
+
+    assertEquals(Set.of(legacy, stale), Set.copyOf(found));
+  }
+
+  /**
+   * Inserts a session document as written by older versions, bypassing the codec.
+   *
+   * @param fields Date fields of the session
+   * @return Id of the session
+   */
+  private ObjectId insert(Document fields) {
+    var id = new ObjectId();
+    var session = new Document("_id", id)
+      .append("username", "user-" + UUID.randomUUID())
+      .append("password", "hash")
+      .append("accessToken", "access")
+      .append("refreshToken", "refresh");
+    session.putAll(fields);
+    sessionRepo.mongoCollection().withDocumentClass(Document.class)
+      .insertOne(session).await().atMost(AWAIT);
+    return id;
+  }
+
+}
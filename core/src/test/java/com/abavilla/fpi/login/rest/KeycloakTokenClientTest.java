@@ -0,0 +1,173 @@
+/*
+ * *****************************************************************************
+ *  * FPI Application - Abavilla                                                 *
+ *  * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *  *                                                                            *
+ *  * This program is free software: you can redistribute it and/or modify       *
+ *  * it under the terms of the GNU General Public License as published by       *
+ *  * the Free Software Foundation, either version 3 of the License, or          *
+ *  * (at your option) any later version.                                        *
+ *  *                                                                            *
+ *  * This program is distributed in the hope that it will be useful,            *
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ *  * GNU General Public License for more details.                               *
+ *  *                                                                            *
+ *  * You should have received a copy of the GNU General Public License          *
+ *  * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ *  *****************************************************************************
+ */
+
+package com.abavilla.fpi.login.rest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.abavilla.fpi.login.util.Resilience;
+import io.vertx.mutiny.core.Context;
+import io.vertx.mutiny.core.Vertx;
+import io.vertx.mutiny.core.http.HttpServer;
+import io.vertx.mutiny.core.http.HttpServerRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.authorization.client.util.HttpResponseException;
+import org.keycloak.representations.AccessTokenResponse;
+
+/**
+ * Tests {@link KeycloakTokenClient} against a stub token endpoint which takes a while to answer, the
+ * event loop making the request must stay free until the response arrives.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+class KeycloakTokenClientTest {
+
+  /**
+   * Time the stub takes to answer a token request
+   */
+  private static final long RESPONSE_DELAY_MS = 500L;
+
+  /**
+   * Interval of the timer checking that the event loop is still running tasks
+   */
+  private static final long TICK_MS = 10L;
+
+  private static final Duration AWAIT = Duration.ofSeconds(5);
+
+  private static final String TOKEN_RESPONSE = "{\"access_token\":\"access\",\"refresh_token\":\"refresh\"," +
+    "\"expires_in\":300,\"refresh_expires_in\":1800,\"token_type\":\"Bearer\"}";
+
+  /**
+   * Forms received by the stub
+   */
+  private final List<String> forms = new CopyOnWriteArrayList<>();
+
+  private Vertx vertx;
+
+  private HttpServer stub;
+
+  private KeycloakTokenClient client;
+
+  @BeforeEach
+  void setUp() {
+    vertx = Vertx.vertx();
+    stub = vertx.createHttpServer().requestHandler(this::answer).listenAndAwait(0);
+    var resilience = mock(Resilience.class);
+    when(resilience.guard(any(), any())).thenAnswer(invocation -> invocation.getArgument(1));
+    client = new KeycloakTokenClient();
+    client.authServerUrl = "http://localhost:" + stub.actualPort() + "/realms/fpi/";
+    client.clientId = "backend-api";
+    client.clientSecret = "secret";
+    client.tlsVerification = "required";
+    client.maxPoolSize = 4;
+    client.timeout = AWAIT;
+    client.vertx = vertx;
+    client.resilience = resilience;
+    client.init();
+  }
+
+  @AfterEach
+  void tearDown() {
+    client.close();
+    stub.closeAndAwait();
+    vertx.closeAndAwait();
+  }
+
+  @Test
+  void obtainAccessTokenKeepsEventLoopFree() throws Exception {
+    var ticks = new AtomicInteger();
+    var subscribeMillis = new CompletableFuture<Long>();
+    var completedOnEventLoop = new AtomicBoolean();
+    var result = new CompletableFuture<AccessTokenResponse>();
+    vertx.getOrCreateContext().runOnContext(() -> {
+      long timer = vertx.setPeriodic(TICK_MS, id -> ticks.incrementAndGet());
+      long start = System.nanoTime();
+      client.obtainAccessToken("user", "password").subscribe().with(token -> {
+        vertx.cancelTimer(timer);
+        completedOnEventLoop.set(Context.isOnEventLoopThread());
+        result.complete(token);
+      }, result::completeExceptionally);
+      subscribeMillis.complete(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    });
+
+    var token = result.get(AWAIT.toMillis(), TimeUnit.MILLISECONDS);
+    assertEquals("access", token.getToken());
+    assertEquals("refresh", token.getRefreshToken());
+    assertTrue(subscribeMillis.get() < RESPONSE_DELAY_MS / 2,
+      "Subscribing waited for the token response on the event loop");
+    assertTrue(ticks.get() >= RESPONSE_DELAY_MS / TICK_MS / 2,
+      "Event loop ran only " + ticks.get() + " timer ticks while the token request was in flight");
+    assertTrue(completedOnEventLoop.get(), "Token response was not delivered on the event loop");
+    assertTrue(forms.get(0).contains("grant_type=password"));
+    assertTrue(forms.get(0).contains("client_id=backend-api"));
+  }
+
+  @Test
+  void refreshAccessTokenUsesRefreshGrant() {
+    var token = client.refreshAccessToken("refresh").await().atMost(AWAIT);
+
+    assertEquals("access", token.getToken());
+    assertTrue(forms.get(0).contains("grant_type=refresh_token"));
+    assertTrue(forms.get(0).contains("refresh_token=refresh"));
+  }
+
+  @Test
+  void rejectedCredentialsFailWithStatus() {
+    var ex = assertThrows(HttpResponseException.class,
+      () -> client.obtainAccessToken("user", "wrong").await().atMost(AWAIT));
+
+    assertEquals(401, ex.getStatusCode());
+  }
+
+  /**
+   * Answers token requests after {@link #RESPONSE_DELAY_MS} without blocking, rejects the password
+   * {@code wrong} right away.
+   *
+   * @param request Token request
+   */
+  private void answer(HttpServerRequest request) {
+    request.body().subscribe().with(body -> {
+      var form = body.toString();
+      forms.add(form);
+      var response = request.response().putHeader("Content-Type", "application/json");
+      if (form.contains("password=wrong")) {
+        response.setStatusCode(401).endAndForget("{\"error\":\"invalid_grant\"}");
+      } else {
+        vertx.setTimer(RESPONSE_DELAY_MS, id -> response.endAndForget(TOKEN_RESPONSE));
+      }
+    });
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * *****************************************************************************
+ *  * FPI Application - Abavilla                                                 *
+ *  * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *  *                                                                            *
+ *  * This program is free software: you can redistribute it and/or modify       *
+ *  * it under the terms of the GNU General Public License as published by       *
+ *  * the Free Software Foundation, either version 3 of the License, or          *
+ *  * (at your option) any later version.                                        *
+ *  *                                                                            *
+ *  * This program is distributed in the hope that it will be useful,            *
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ *  * GNU General Public License for more details.                               *
+ *  *                                                                            *
+ *  * You should have received a copy of the GNU General Public License          *
+ *  * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ *  *****************************************************************************
+ */
+
+package com.abavilla.fpi.login.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import com.abavilla.fpi.login.ext.dto.PasswordLoginDto;
+import com.abavilla.fpi.login.ext.dto.SessionDto;
+import com.abavilla.fpi.login.repo.SessionRepo;
+import com.abavilla.fpi.login.rest.KeycloakTokenClient;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.mockito.InjectMock;
+import io.smallrye.mutiny.Uni;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.representations.AccessTokenResponse;
+
+/**
+ * Tests that concurrent logins with the same credentials share a single keycloak call and session
+ * write, against the dev services MongoDB.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@QuarkusTest
+class LoginSvcTest {
+
+  /**
+   * Number of logins made at the same time
+   */
+  private static final int PARALLEL_LOGINS = 32;
+
+  /**
+   * Time keycloak takes to answer, long enough for every login to join the first one
+   */
+  private static final Duration KEYCLOAK_DELAY = Duration.ofMillis(500);
+
+  private static final Duration AWAIT = Duration.ofSeconds(30);
+
+  @Inject
+  LoginSvc loginSvc;
+
+  @Inject
+  SessionRepo sessionRepo;
+
+  @InjectMock
+  KeycloakTokenClient tokenClient;
+
+  @BeforeEach
+  void setUp() {
+    var auth = new AccessTokenResponse();
+    auth.setToken("access");
+    auth.setRefreshToken("refresh");
+    auth.setExpiresIn(300);
+    when(tokenClient.obtainAccessToken(anyString(), anyString()))
+      .thenReturn(Uni.createFrom().item(auth).onItem().delayIt().by(KEYCLOAK_DELAY));
+  }
+
+  @Test
+  void parallelLoginsOfOneUserShareOneKeycloakCall() {
+    var username = "user-" + UUID.randomUUID();
+
+    var sessions = loginAll(IntStream.range(0, PARALLEL_LOGINS)
+      .mapToObj(i -> login(username, "password")).toList());
+
+    verify(tokenClient, times(1)).obtainAccessToken(username, "password");
+    assertEquals(PARALLEL_LOGINS, sessions.size());
+    sessions.forEach(session -> {
+      assertEquals(username, session.getUsername());
+      assertEquals("access", session.getAccessToken());
+    });
+    assertEquals(1L, sessionRepo.count("username", username).await().atMost(AWAIT));
+  }
+
+  @Test
+  void parallelLoginsOfDifferentUsersAreNotShared() {
+    var first = "user-" + UUID.randomUUID();
+    var second = "user-" + UUID.randomUUID();
+
+    loginAll(IntStream.range(0, PARALLEL_LOGINS)
+      .mapToObj(i -> login(i % 2 == 0 ? first : second, "password")).toList());
+
+    verify(tokenClient, times(1)).obtainAccessToken(first, "password");
+    verify(tokenClient, times(1)).obtainAccessToken(second, "password");
+  }
+
+  /**
+   * Subscribes to all the logins at once and waits for them to complete.
+   *
+   * @param logins Credentials of each login
+   * @return Sessions of the logins
+   */
+  private List<SessionDto> loginAll(List<PasswordLoginDto> logins) {
+    return Uni.join().all(logins.stream().map(loginSvc::login).toList())
+      .andFailFast()
+      .await().atMost(AWAIT);
+  }
+
+  private static PasswordLoginDto login(String username, String password) {
+    var login = new PasswordLoginDto();
+    login.setUsername(username);
+    login.setPassword(password);
+    return login;
+  }
+
+}
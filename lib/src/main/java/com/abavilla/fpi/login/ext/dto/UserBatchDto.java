@@ -0,0 +1,67 @@
+/******************************************************************************
+ * FPI Application - Abavilla                                                 *
+ * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ * (at your option) any later version.                                        *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ ******************************************************************************/
+
+
+package com.abavilla.fpi.login.ext.dto;
+
+import java.util.List;
+
+import com.abavilla.fpi.fw.dto.AbsDto;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+/**
+ * Data transfer object containing the keys of the users to retrieve in a single batch, keys of
+ * different types may be mixed.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+@NoArgsConstructor
+@RegisterForReflection
+public class UserBatchDto extends AbsDto {
+
+  /**
+   * User ids
+   */
+  private List<String> ids;
+
+  /**
+   * User ids in Meta
+   */
+  private List<String> metaIds;
+
+  /**
+   * User ids in Telegram
+   */
+  private List<String> telegramIds;
+
+  /**
+   * User ids in Viber
+   */
+  private List<String> viberIds;
+
+  /**
+   * Mobile numbers
+   */
+  private List<String> mobiles;
+
+}
@@ -0,0 +1,90 @@
+/*
+ * *****************************************************************************
+ *  * FPI Application - Abavilla                                                 *
+ *  * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *  *                                                                            *
+ *  * This program is free software: you can redistribute it and/or modify       *
+ *  * it under the terms of the GNU General Public License as published by       *
+ *  * the Free Software Foundation, either version 3 of the License, or          *
+ *  * (at your option) any later version.                                        *
+ *  *                                                                            *
+ *  * This program is distributed in the hope that it will be useful,            *
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ *  * GNU General Public License for more details.                               *
+ *  *                                                                            *
+ *  * You should have received a copy of the GNU General Public License          *
+ *  * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ *  *****************************************************************************
+ */
+
+package com.abavilla.fpi.login.ext.rest;
+
+import io.smallrye.common.vertx.ContextLocals;
+import io.smallrye.common.vertx.VertxContext;
+
+/**
+ * Time each attempt of a login API call is given, and the header passing it on to the login API
+ * so that the service stops retrying its own dependencies once the caller has timed out. The header
+ * holds what is left of the attempt, or of the whole call once retries have used up most of
+ * {@link #MAX_DURATION_MS}.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+public final class ApiDeadline {
+
+  /**
+   * Header holding the time in milliseconds the caller waits for the response
+   */
+  public static final String HEADER = "X-FPI-Timeout-Ms";
+
+  /**
+   * {@link org.eclipse.microprofile.rest.client.annotation.ClientHeaderParam} value computing the header
+   */
+  public static final String HEADER_VALUE = "{com.abavilla.fpi.login.ext.rest.ApiDeadline.remainingMs}";
+
+  /**
+   * Time in milliseconds allowed for each attempt of a call
+   */
+  public static final long TIMEOUT_MS = 10_000L;
+
+  /**
+   * Time in milliseconds allowed for a call including all of its retries
+   */
+  public static final long MAX_DURATION_MS = 30_000L;
+
+  /**
+   * Key of the start of the call in the Vert.x context locals
+   */
+  private static final String CALL_START_KEY = "fpi.login.api.call-start";
+
+  private ApiDeadline() {}
+
+  /**
+   * Records the start of a call before its first attempt, see {@link ApiDeadlineInterceptor}.
+   */
+  static void markCallStart() {
+    if (VertxContext.isOnDuplicatedContext()) {
+      ContextLocals.put(CALL_START_KEY, System.nanoTime());
+    }
+  }
+
+  /**
+   * Time in milliseconds the current attempt may take, the lesser of {@link #TIMEOUT_MS} and what is left
+   * of {@link #MAX_DURATION_MS} since the call started. Attempts made off the caller's context are
+   * given the full {@link #TIMEOUT_MS}.
+   *
+   * @return Header value
+   */
+  public static String remainingMs() {
+    long remaining = TIMEOUT_MS;
+    if (VertxContext.isOnDuplicatedContext()) {
+      var start = ContextLocals.<Long>get(CALL_START_KEY);
+      if (start.isPresent()) {
+        long elapsedMs = (System.nanoTime() - start.get()) / 1_000_000L;
+        remaining = Math.max(1L, Math.min(TIMEOUT_MS, MAX_DURATION_MS - elapsedMs));
+      }
+    }
+    return String.valueOf(remaining);
+  }
+}
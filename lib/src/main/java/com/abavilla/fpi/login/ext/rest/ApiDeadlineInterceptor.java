@@ -0,0 +1,69 @@
+/*
+ * *****************************************************************************
+ *  * FPI Application - Abavilla                                                 *
+ *  * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *  *                                                                            *
+ *  * This program is free software: you can redistribute it and/or modify       *
+ *  * it under the terms of the GNU General Public License as published by       *
+ *  * the Free Software Foundation, either version 3 of the License, or          *
+ *  * (at your option) any later version.                                        *
+ *  *                                                                            *
+ *  * This program is distributed in the hope that it will be useful,            *
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ *  * GNU General Public License for more details.                               *
+ *  *                                                                            *
+ *  * You should have received a copy of the GNU General Public License          *
+ *  * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ *  *****************************************************************************
+ */
+
+package com.abavilla.fpi.login.ext.rest;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import jakarta.annotation.Priority;
+import jakarta.interceptor.AroundInvoke;
+import jakarta.interceptor.Interceptor;
+import jakarta.interceptor.InvocationContext;
+
+/**
+ * Records the start of a login API call for {@link ApiDeadline#remainingMs()}. Runs ahead of the
+ * fault tolerance interceptor so that the start is taken once per call, not once per retry.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@WithApiDeadline
+@Interceptor
+@Priority(Interceptor.Priority.PLATFORM_AFTER)
+public class ApiDeadlineInterceptor {
+
+  @AroundInvoke
+  Object markCallStart(InvocationContext context) throws Exception {
+    var returnType = context.getMethod().getReturnType();
+    if (Uni.class.equals(returnType)) {
+      return Uni.createFrom().deferred(() -> {
+        ApiDeadline.markCallStart();
+        return (Uni<?>) proceed(context);
+      });
+    }
+    if (Multi.class.equals(returnType)) {
+      return Multi.createFrom().deferred(() -> {
+        ApiDeadline.markCallStart();
+        return (Multi<?>) proceed(context);
+      });
+    }
+    ApiDeadline.markCallStart();
+    return context.proceed();
+  }
+
+  private static Object proceed(InvocationContext context) {
+    try {
+      return context.proceed();
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
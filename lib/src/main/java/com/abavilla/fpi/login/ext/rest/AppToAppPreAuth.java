@@ -20,14 +20,12 @@
 
 package com.abavilla.fpi.login.ext.rest;
 
-import com.abavilla.fpi.login.ext.dto.PasswordLoginDto;
 import io.quarkus.rest.client.reactive.ReactiveClientHeadersFactory;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 import jakarta.ws.rs.core.MultivaluedHashMap;
 import jakarta.ws.rs.core.MultivaluedMap;
-import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
 
 /**
  * HTTP Header configuration for {@link TrustedLoginApi} resource.
@@ -38,22 +36,10 @@ import org.eclipse.microprofile.rest.client.inject.RestClient;
 public class AppToAppPreAuth extends ReactiveClientHeadersFactory {
 
   /**
-   * API Key for app-to-app service access
+   * Holder of the shared app-to-app token
    */
-  @ConfigProperty(name = "fpi.app-to-app.auth.username")
-  String apiKey;
-
-  /**
-   * Secret Key for app-to-app service access
-   */
-  @ConfigProperty(name = "fpi.app-to-app.auth.password")
-  String secretKey;
-
-  /**
-   * Login resource
-   */
-  @RestClient
-  LoginApi loginRepo;
+  @Inject
+  AppToAppTokenHolder tokenHolder;
 
   /**
    * {@inheritDoc}
@@ -68,18 +54,11 @@ public class AppToAppPreAuth extends ReactiveClientHeadersFactory {
   }
 
   /**
-   * Get a token for authentication.
+   * Get a token for authentication, reuses the held token until it is about to expire.
    *
    * @return Session token
    */
   public Uni<String> authenticate() {
-    var creds = new PasswordLoginDto();
-    creds.setUsername(apiKey);
-    creds.setPassword(secretKey);
-
-    return loginRepo.authenticate(creds)
-        .chain(sessionDto ->
-            Uni.createFrom().item("Bearer " +
-                sessionDto.getAccessToken()));
+    return tokenHolder.getToken();
   }
 }
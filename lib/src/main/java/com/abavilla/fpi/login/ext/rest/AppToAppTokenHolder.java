@@ -0,0 +1,243 @@
+/*
+ * *****************************************************************************
+ *  * FPI Application - Abavilla                                                 *
+ *  * Copyright (C) 2022  Vince Jerald Villamora                                 *
+ *  *                                                                            *
+ *  * This program is free software: you can redistribute it and/or modify       *
+ *  * it under the terms of the GNU General Public License as published by       *
+ *  * the Free Software Foundation, either version 3 of the License, or          *
+ *  * (at your option) any later version.                                        *
+ *  *                                                                            *
+ *  * This program is distributed in the hope that it will be useful,            *
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ *  * GNU General Public License for more details.                               *
+ *  *                                                                            *
+ *  * You should have received a copy of the GNU General Public License          *
+ *  * along with this program.  If not, see <https://www.gnu.org/licenses/>.     *
+ *  *****************************************************************************
+ */
+
+package com.abavilla.fpi.login.ext.rest;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.abavilla.fpi.fw.util.DateUtil;
+import com.abavilla.fpi.login.ext.dto.PasswordLoginDto;
+import com.abavilla.fpi.login.ext.dto.SessionDto;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.Cancellable;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.jboss.logging.Logger;
+
+/**
+ * Holds the app-to-app bearer token shared by all outgoing {@link UserApi} and {@link TrustedLoginApi}
+ * calls. The token is reused until shortly before {@link SessionDto#getTokenExpiry()}, concurrent callers
+ * needing a new token share a single login request, and the token is refreshed in the background
+ * ahead of its expiry.
+ *
+ * @author <a href="mailto:vincevillamora@gmail.com">Vince Villamora</a>
+ */
+@ApplicationScoped
+public class AppToAppTokenHolder {
+
+  private static final Logger LOG = Logger.getLogger(AppToAppTokenHolder.class);
+
+  private static final DateTimeFormatter EXPIRY_FORMAT =
+    DateTimeFormatter.ofPattern(DateUtil.DEFAULT_TIMESTAMP_FORMAT_WITH_TIMEZONE);
+
+  /**
+   * API Key for app-to-app service access
+   */
+  @ConfigProperty(name = "fpi.app-to-app.auth.username")
+  String apiKey;
+
+  /**
+   * Secret Key for app-to-app service access
+   */
+  @ConfigProperty(name = "fpi.app-to-app.auth.password")
+  String secretKey;
+
+  /**
+   * Token is no longer handed out once it is this close to expiring
+   */
+  @ConfigProperty(name = "fpi.app-to-app.auth.expiry-skew", defaultValue = "30S")
+  Duration expirySkew;
+
+  /**
+   * How long before the token stops being handed out it is refreshed in the background
+   */
+  @ConfigProperty(name = "fpi.app-to-app.auth.refresh-ahead", defaultValue = "60S")
+  Duration refreshAhead;
+
+  /**
+   * Lifetime assumed for tokens whose expiry could not be read
+   */
+  @ConfigProperty(name = "fpi.app-to-app.auth.fallback-ttl", defaultValue = "60S")
+  Duration fallbackTtl;
+
+  /**
+   * Login resource
+   */
+  @RestClient
+  LoginApi loginRepo;
+
+  /**
+   * Currently held token
+   */
+  private volatile CachedToken current;
+
+  /**
+   * Login request currently in flight, shared by all callers waiting for a token
+   */
+  private final AtomicReference<Uni<CachedToken>> inflight = new AtomicReference<>();
+
+  /**
+   * Pending background refresh, cleared once it starts running
+   */
+  private final AtomicReference<PendingRefresh> scheduledRefresh = new AtomicReference<>();
+
+  /**
+   * Retrieves a bearer token, logging in only if there is no usable token held.
+   *
+   * @return Bearer token including the {@code Bearer} prefix
+   */
+  public Uni<String> getToken() {
+    var token = current;
+    if (token != null && token.isUsable()) {
+      return Uni.createFrom().item(token.value());
+    }
+    return refresh().map(CachedToken::value);
+  }
+
+  /**
+   * Discards the held token, the next caller will log in again.
+   */
+  public void invalidate() {
+    current = null;
+  }
+
+  @PreDestroy
+  void cancelRefresh() {
+    var pending = scheduledRefresh.getAndSet(null);
+    if (pending != null) {
+      pending.cancel();
+    }
+  }
+
+  /**
+   * Logs in for a new token, joining the login already in flight if there is one.
+   *
+   * @return New token
+   */
+  private Uni<CachedToken> refresh() {
+    var pending = inflight.get();
+    if (pending != null) {
+      return pending;
+    }
+    Uni<CachedToken> flight = Uni.createFrom().deferred(this::login)
+      .invoke(token -> {
+        current = token;
+        scheduleRefresh(token);
+      })
+      .eventually(() -> inflight.set(null))
+      .memoize().indefinitely();
+    if (inflight.compareAndSet(null, flight)) {
+      return flight;
+    }
+    return refresh();
+  }
+
+  private Uni<CachedToken> login() {
+    var creds = new PasswordLoginDto();
+    creds.setUsername(apiKey);
+    creds.setPassword(secretKey);
+    return loginRepo.authenticate(creds).map(sessionDto -> {
+      var expiry = readExpiry(sessionDto);
+      return new CachedToken("Bearer " + sessionDto.getAccessToken(), expiry.minus(expirySkew));
+    });
+  }
+
+  /**
+   * Schedules a login shortly before the token stops being handed out, so that callers
+   * rarely have to wait for one. A refresh still waiting for its time is replaced, while one already
+   * running is left alone since it is the one that obtained the token.
+   *
+   * @param token Newly obtained token
+   */
+  private void scheduleRefresh(CachedToken token) {
+    var delay = Duration.between(Instant.now(), token.usableUntil().minus(refreshAhead));
+    if (delay.isNegative() || delay.isZero()) {
+      return;
+    }
+    var next = new PendingRefresh();
+    var previous = scheduledRefresh.getAndSet(next);
+    if (previous != null) {
+      previous.cancel();
+    }
+    next.start(Uni.createFrom().voidItem()
+      .onItem().delayIt().by(delay)
+      .invoke(() -> scheduledRefresh.compareAndSet(next, null))
+      .chain(this::refresh)
+      .subscribe().with(
+        refreshed -> LOG.debug("Refreshed app-to-app token ahead of expiry"),
+        ex -> LOG.warn("Unable to refresh app-to-app token ahead of expiry", ex)));
+  }
+
+  private Instant readExpiry(SessionDto sessionDto) {
+    if (sessionDto.getTokenExpiry() != null) {
+      try {
+        return ZonedDateTime.parse(sessionDto.getTokenExpiry(), EXPIRY_FORMAT).toInstant();
+      } catch (DateTimeException ex) {
+        LOG.warnf("Unable to read app-to-app token expiry '%s'", sessionDto.getTokenExpiry());
+      }
+    }
+    return Instant.now().plus(fallbackTtl).plus(expirySkew);
+  }
+
+  /**
+   * Background refresh which may be cancelled before its subscription is handed over.
+   */
+  private static final class PendingRefresh {
+
+    private Cancellable subscription;
+
+    private boolean cancelled;
+
+    synchronized void start(Cancellable subscription) {
+      if (cancelled) {
+        subscription.cancel();
+      } else {
+        this.subscription = subscription;
+      }
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (subscription != null) {
+        subscription.cancel();
+      }
+    }
+  }
+
+  /**
+   * Bearer token and the instant until which it may be handed out.
+   *
+   * @param value Bearer token including the {@code Bearer} prefix
+   * @param usableUntil Instant after which a new token should be obtained
+   */
+  private record CachedToken(String value, Instant usableUntil) {
+    boolean isUsable() {
+      return Instant.now().isBefore(usableUntil);
+    }
+  }
+
+}
@@ -32,7 +32,12 @@ import io.smallrye.faulttolerance.api.ExponentialBackoff;
 import io.smallrye.mutiny.Uni;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.ProcessingException;
+import org.eclipse.microprofile.faulttolerance.CircuitBreaker;
 import org.eclipse.microprofile.faulttolerance.Retry;
+import org.eclipse.microprofile.faulttolerance.Timeout;
+import org.eclipse.microprofile.faulttolerance.exceptions.TimeoutException;
+import org.eclipse.microprofile.rest.client.annotation.ClientHeaderParam;
 import org.eclipse.microprofile.rest.client.annotation.RegisterClientHeaders;
 import org.eclipse.microprofile.rest.client.annotation.RegisterProvider;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
@@ -40,9 +45,15 @@ import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 @RegisterRestClient(configKey = "login-api")
 @RegisterClientHeaders(AppToAppPreAuth.class)
 @RegisterProvider(value = ApiRepoExHandler.class)
-@Retry(maxRetries = 8, retryOn = AuthApiSvcEx.class, delay = 3,
-  delayUnit = ChronoUnit.SECONDS, jitter = 1500L)
-@ExponentialBackoff(maxDelay = 25, maxDelayUnit = ChronoUnit.SECONDS)
+@ClientHeaderParam(name = ApiDeadline.HEADER, value = ApiDeadline.HEADER_VALUE)
+@WithApiDeadline
+@Timeout(ApiDeadline.TIMEOUT_MS)
+@Retry(maxRetries = 3, retryOn = AuthApiSvcEx.class, delay = 1,
+  delayUnit = ChronoUnit.SECONDS, jitter = 500L, maxDuration = ApiDeadline.MAX_DURATION_MS,
+  durationUnit = ChronoUnit.MILLIS)
+@ExponentialBackoff(maxDelay = 8, maxDelayUnit = ChronoUnit.SECONDS)
+@CircuitBreaker(failOn = {TimeoutException.class, ProcessingException.class}, requestVolumeThreshold = 20,
+  failureRatio = 0.5, delay = 10, delayUnit = ChronoUnit.SECONDS)
 public interface TrustedLoginApi extends IApi {
 
   /**
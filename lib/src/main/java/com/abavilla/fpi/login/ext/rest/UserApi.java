@@ -26,25 +26,43 @@ import com.abavilla.fpi.fw.dto.impl.RespDto;
 import com.abavilla.fpi.fw.exceptions.AuthApiSvcEx;
 import com.abavilla.fpi.fw.exceptions.handler.ApiRepoExHandler;
 import com.abavilla.fpi.fw.rest.IApi;
+import com.abavilla.fpi.login.ext.dto.UserBatchDto;
 import com.abavilla.fpi.login.ext.dto.UserDto;
 import io.smallrye.faulttolerance.api.ExponentialBackoff;
+import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.PATCH;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import org.eclipse.microprofile.faulttolerance.CircuitBreaker;
 import org.eclipse.microprofile.faulttolerance.Retry;
+import org.eclipse.microprofile.faulttolerance.Timeout;
+import org.eclipse.microprofile.faulttolerance.exceptions.TimeoutException;
+import org.eclipse.microprofile.rest.client.annotation.ClientHeaderParam;
 import org.eclipse.microprofile.rest.client.annotation.RegisterClientHeaders;
 import org.eclipse.microprofile.rest.client.annotation.RegisterProvider;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
+import org.jboss.resteasy.reactive.RestMediaType;
+import org.jboss.resteasy.reactive.RestStreamElementType;
 
 @RegisterRestClient(configKey = "user-api")
 @RegisterClientHeaders(AppToAppPreAuth.class)
 @RegisterProvider(value = ApiRepoExHandler.class)
-@Retry(maxRetries = 8, retryOn = AuthApiSvcEx.class, delay = 3,
-  delayUnit = ChronoUnit.SECONDS, jitter = 1500L)
-@ExponentialBackoff(maxDelay = 25, maxDelayUnit = ChronoUnit.SECONDS)
+@ClientHeaderParam(name = ApiDeadline.HEADER, value = ApiDeadline.HEADER_VALUE)
+@WithApiDeadline
+@Timeout(ApiDeadline.TIMEOUT_MS)
+@Retry(maxRetries = 3, retryOn = AuthApiSvcEx.class, delay = 1,
+  delayUnit = ChronoUnit.SECONDS, jitter = 500L, maxDuration = ApiDeadline.MAX_DURATION_MS,
+  durationUnit = ChronoUnit.MILLIS)
+@ExponentialBackoff(maxDelay = 8, maxDelayUnit = ChronoUnit.SECONDS)
+@CircuitBreaker(failOn = {TimeoutException.class, ProcessingException.class}, requestVolumeThreshold = 20,
+  failureRatio = 0.5, delay = 10, delayUnit = ChronoUnit.SECONDS)
 public interface UserApi extends IApi {
 
   /**
@@ -84,4 +102,30 @@ public interface UserApi extends IApi {
   @PATCH
   Uni<RespDto<UserDto>> patchById(@PathParam("id") String userId, UserDto patch);
 
+  /**
+   * Patches {@link UserDto} given the user's {@code id}, only if the user was not updated since
+   * {@code dateUpdated}, otherwise fails with 412.
+   *
+   * @param userId the user id
+   * @param dateUpdated Update date of the user the patch was based on, in UTC e.g. {@code 2023-01-01T00:00:00}
+   * @return {@link UserDto}
+   */
+  @Path("{id}")
+  @PATCH
+  Uni<RespDto<UserDto>> patchById(@PathParam("id") String userId, @QueryParam("dateUpdated") String dateUpdated,
+                                  UserDto patch);
+
+  /**
+   * Retrieves the users matching any of the given keys, streamed as they are found. Users matching
+   * more than one key are returned once, keys with no matching user are left out.
+   *
+   * @param batch Keys of the users
+   * @return Stream of {@link UserDto}
+   */
+  @POST
+  @Path("batch")
+  @Produces(RestMediaType.APPLICATION_NDJSON)
+  @RestStreamElementType(MediaType.APPLICATION_JSON)
+  Multi<UserDto> getBatch(UserBatchDto batch);
+
 }